@@ -5,15 +5,16 @@ import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.MatchingTask;
 import org.apache.tools.ant.types.Path;
 import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan;
 import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom;
 import org.dyndns.fichtner.purgeannotationrefs.ant.types.AnnotationRemoveSelector;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.DirectoryOptimizer;
 import org.dyndns.fichtner.purgeannotationrefs.optimizer.ZipOptimizer;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import static org.dyndns.fichtner.purgeannotationrefs.Util.isClass;
 import static org.dyndns.fichtner.purgeannotationrefs.Util.isZip;
@@ -24,20 +25,9 @@ public class PurgeAnnotationRefsTask extends MatchingTask {
   private Path src;
   private File targetDir;
   private boolean overwrite;
-
-  private static InputStream createInputStream(final File srcFile,
-                                               final boolean srcIsTarget) throws IOException {
-    return srcIsTarget ? readToMem(srcFile) : new FileInputStream(srcFile);
-  }
-
-  private static InputStream readToMem(final File file) throws IOException {
-    try (DataInputStream dis = new DataInputStream(new FileInputStream(
-        file))) {
-      final byte[] buffer = new byte[(int) file.length()];
-      dis.readFully(buffer);
-      return new ByteArrayInputStream(buffer);
-    }
-  }
+  private boolean compact;
+  private boolean link;
+  private int threads;
 
   /**
    * Adds a configuration to the task.
@@ -47,7 +37,7 @@ public class PurgeAnnotationRefsTask extends MatchingTask {
   public void addConfiguredRemove(final AnnotationRemoveSelector ars) {
     if (ars.getMatcher() == null) {
       throw new BuildException(
-          "missing argument for remove, either name or regexp has to be set"); //$NON-NLS-1$
+          "missing argument for remove, either name, glob or regexp has to be set"); //$NON-NLS-1$
     }
     // don't check target: it may be null (indicates "all")
     this.selectors.add(ars);
@@ -63,71 +53,124 @@ public class PurgeAnnotationRefsTask extends MatchingTask {
     this.overwrite = overwrite;
   }
 
+  /**
+   * Compacts zip files updated in place (when not using targetDir), so the
+   * bytes of the replaced entries are removed. Applies to zip files given
+   * as files as well as to the ones inside src directories.
+   *
+   * @param compact <code>true</code> compacts zip files updated in place
+   */
+  public void setCompact(final boolean compact) {
+    this.compact = compact;
+  }
+
+  /**
+   * Hard-links the files not needing any change into targetDir instead of
+   * copying them (falls back to copying if the file system does not support
+   * hard links). Applies to files given as files as well as to the files of
+   * src directories.
+   *
+   * @param link <code>true</code> hard-links unchanged files
+   */
+  public void setLink(final boolean link) {
+    this.link = link;
+  }
+
+  /**
+   * Count of threads processing the files of src directories concurrently,
+   * defaults to the count of available processors.
+   *
+   * @param threads count of threads, <code>0</code> for the count of
+   *                available processors
+   */
+  public void setThreads(final int threads) {
+    if (threads < 0) {
+      throw new BuildException("threads must not be negative but was " //$NON-NLS-1$
+          + threads);
+    }
+    this.threads = threads;
+  }
+
   private void doWork(final File srcFile,
                       final AnnotationReferenceRemover remover) throws IOException {
-    boolean srcIsTarget = this.targetDir == null;
-    final File targetFile = srcIsTarget ? srcFile : new File(
+    if (!isClass(srcFile.getName()) && !isZip(srcFile.getName())) {
+      return;
+    }
+    final File targetFile = this.targetDir == null ? srcFile : new File(
         this.targetDir, srcFile.getName());
-    // reevaluate
-    srcIsTarget = targetFile.equals(srcFile);
-    if (!srcIsTarget && !this.overwrite && targetFile.exists()
+    if (!targetFile.equals(srcFile) && !this.overwrite && targetFile.exists()
         && targetFile.lastModified() > srcFile.lastModified()) {
       log("File " + targetFile + " is uptodate"); //$NON-NLS-1$ //$NON-NLS-2$
     } else {
       log("Processing file " + srcFile); //$NON-NLS-1$
-      if (isClass(srcFile.getName())) {
-        try (final InputStream input = createInputStream(srcFile,
-            srcIsTarget)) {
-          try (final FileOutputStream output = new FileOutputStream(targetFile)) {
-            remover.optimize(input, output);
-          }
-        }
-      } else if (isZip(srcFile.getName())) {
-        try (final ZipInputStream input = new ZipInputStream(
-            createInputStream(srcFile, srcIsTarget))) {
-          try (final ZipOutputStream output = new ZipOutputStream(
-              new FileOutputStream(targetFile))) {
-            new ZipOptimizer(remover) {
-              @Override
-              protected void processClass(final String name,
-                                          final ZipInputStream zis, final ZipOutputStream zos)
-                  throws IOException {
-                log("Processing class " + name); //$NON-NLS-1$
-                super.processClass(name, zis, zos);
-
-              }
-            }.optimize(input, output);
-          }
-        }
-      }
+      // written only if modified in place, linked if configured and unchanged
+      createDirectoryOptimizer(remover).optimizeFile(srcFile.toPath(), targetFile.toPath());
     }
   }
 
+  private void doWorkDirectory(final File srcDir,
+                               final AnnotationReferenceRemover remover) throws IOException {
+    final File targetDir = this.targetDir == null ? srcDir : this.targetDir;
+    log("Processing directory " + srcDir); //$NON-NLS-1$
+    createDirectoryOptimizer(remover).optimize(srcDir.toPath(), targetDir.toPath());
+  }
+
+  private DirectoryOptimizer createDirectoryOptimizer(final AnnotationReferenceRemover remover) {
+    final DirectoryOptimizer directoryOptimizer = new DirectoryOptimizer(remover) {
+      @Override
+      protected byte[] transformClass(final java.nio.file.Path path,
+                                      final byte[] bytes) throws IOException {
+        log("Processing class " + path); //$NON-NLS-1$
+        return super.transformClass(path, bytes);
+      }
+    };
+    return directoryOptimizer.setZipOptimizer(createZipOptimizer(remover))
+        .setCompactZips(this.compact)
+        .setLink(this.link)
+        .setThreads(this.threads > 0 ? this.threads
+            : Runtime.getRuntime().availableProcessors());
+  }
+
+  private ZipOptimizer createZipOptimizer(final AnnotationReferenceRemover remover) {
+    return new ZipOptimizer(remover) {
+      @Override
+      protected byte[] transformClass(final String name,
+                                      final byte[] bytes) throws IOException {
+        log("Processing class " + name); //$NON-NLS-1$
+        return super.transformClass(name, bytes);
+      }
+    };
+  }
+
+  /**
+   * Creates a remover backed by an immutable {@link RemovalPlan}, so it can
+   * be shared by the threads optimizing directories concurrently.
+   */
   private AnnotationReferenceRemover createConfigured() {
-    final AnnotationReferenceRemover remover = new AnnotationReferenceRemover();
-    configure(remover);
-    return remover;
+    final RemovalPlan.Builder builder = RemovalPlan.builder();
+    configure(builder);
+    return new AnnotationReferenceRemover(builder.build());
   }
 
-  private void configure(final AnnotationReferenceRemover remover) {
+  private void configure(final RemovalPlan.Builder builder) {
     for (final AnnotationRemoveSelector annotationRemoveSelector : this.selectors) {
       final RemoveFrom removeFrom = annotationRemoveSelector.getFrom();
       if (removeFrom == RemoveFrom.ALL || removeFrom == null) {
         for (RemoveFrom tmp : RemoveFrom.values()) {
           if (tmp != RemoveFrom.ALL) {
-            configure(remover, annotationRemoveSelector, tmp);
+            configure(builder, annotationRemoveSelector, tmp);
           }
         }
       } else {
-        configure(remover, annotationRemoveSelector, removeFrom);
+        configure(builder, annotationRemoveSelector, removeFrom);
       }
     }
   }
 
-  private void configure(final AnnotationReferenceRemover remover,
+  private void configure(final RemovalPlan.Builder builder,
                          final AnnotationRemoveSelector annotationRemoveSelector,
                          final RemoveFrom removeFrom) {
-    remover.removeFrom(removeFrom, annotationRemoveSelector.getMatcher());
+    builder.removeFrom(removeFrom, annotationRemoveSelector.getMatcher());
   }
 
   @Override
@@ -148,7 +191,11 @@ public class PurgeAnnotationRefsTask extends MatchingTask {
             + " does not exist!", getLocation()); //$NON-NLS-1$
       }
       try {
-        doWork(pathElement.getAbsoluteFile(), remover);
+        if (pathElement.isDirectory()) {
+          doWorkDirectory(pathElement.getAbsoluteFile(), remover);
+        } else {
+          doWork(pathElement.getAbsoluteFile(), remover);
+        }
       } catch (final IOException e) {
         throw new BuildException(e);
       }
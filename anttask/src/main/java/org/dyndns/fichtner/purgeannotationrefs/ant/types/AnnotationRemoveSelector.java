@@ -1,5 +1,6 @@
 package org.dyndns.fichtner.purgeannotationrefs.ant.types;
 
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.GlobMatcher;
 import org.dyndns.fichtner.purgeannotationrefs.Matcher.RegExpMatcher;
 import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
 import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom;
@@ -36,4 +37,8 @@ public class AnnotationRemoveSelector {
     this.matcher = new RegExpMatcher(Pattern.compile(regexp));
   }
 
+  public void setGlob(String glob) {
+    this.matcher = new GlobMatcher(glob);
+  }
+
 }
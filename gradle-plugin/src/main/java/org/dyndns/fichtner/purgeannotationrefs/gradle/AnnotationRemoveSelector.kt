@@ -1,5 +1,6 @@
 package org.dyndns.fichtner.purgeannotationrefs.gradle
 
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.GlobMatcher
 import org.dyndns.fichtner.purgeannotationrefs.Matcher.RegExpMatcher
 import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher
 import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom
@@ -20,6 +21,12 @@ data class AnnotationRemoveSelector(var from: RemoveFrom = RemoveFrom.ALL, var m
       return AnnotationRemoveSelector(from, RegExpMatcher(Pattern.compile(regexp)))
     }
 
+    @JvmStatic
+    @JvmOverloads
+    fun glob(glob: String, from: RemoveFrom = RemoveFrom.ALL): AnnotationRemoveSelector {
+      return AnnotationRemoveSelector(from, GlobMatcher(glob))
+    }
+
     @JvmStatic
     @JvmOverloads
     fun matching(from: RemoveFrom = RemoveFrom.ALL, matcher: Predicate<String>): AnnotationRemoveSelector {
@@ -1,8 +1,9 @@
 package org.dyndns.fichtner.purgeannotationrefs.gradle
 
 import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan
 import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom
-import org.dyndns.fichtner.purgeannotationrefs.Util
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.DirectoryOptimizer
 import org.dyndns.fichtner.purgeannotationrefs.optimizer.ZipOptimizer
 import org.gradle.api.Action
 import org.gradle.api.DefaultTask
@@ -14,9 +15,8 @@ import org.gradle.api.provider.Property
 import org.gradle.api.tasks.*
 import org.gradle.kotlin.dsl.listProperty
 import org.gradle.kotlin.dsl.property
-import java.io.*
-import java.util.zip.ZipInputStream
-import java.util.zip.ZipOutputStream
+import java.io.IOException
+import java.nio.file.Path
 import javax.inject.Inject
 
 @CacheableTask
@@ -28,6 +28,21 @@ open class PurgeAnnotationRefsTask @Inject constructor(
   @get:Optional
   val overwrite: Property<Boolean> = objectFactory.property<Boolean>().convention(true)
 
+  @get:Input
+  @get:Optional
+  val compact: Property<Boolean> = objectFactory.property<Boolean>().convention(false)
+
+  @get:Input
+  @get:Optional
+  val link: Property<Boolean> = objectFactory.property<Boolean>().convention(false)
+
+  /**
+   * Count of threads processing files concurrently, `0` (the default) for the
+   * count of available processors. Does not change the output.
+   */
+  @get:Internal
+  val threads: Property<Int> = objectFactory.property<Int>().convention(0)
+
   @get:InputDirectory
   @get:PathSensitive(PathSensitivity.RELATIVE)
   val sourceDir: DirectoryProperty = objectFactory.directoryProperty()
@@ -52,94 +67,47 @@ open class PurgeAnnotationRefsTask @Inject constructor(
     }
     targetDir.get().asFile.mkdirs()
     val remover = createConfigured()
-
-    sourceDir.asFileTree.forEach {
-      doWork(it, remover, srcIsTarget)
-    }
-  }
-
-  private fun createConfigured(): AnnotationReferenceRemover {
-    return AnnotationReferenceRemover().apply {
-      for (removeSelector in selectors.get()) {
-        val removeFrom: RemoveFrom = removeSelector.from
-        if (removeFrom == RemoveFrom.ALL) {
-          for (tmp in RemoveFrom.values().filter { it != RemoveFrom.ALL }) {
-            removeFrom(tmp, removeSelector.matcher)
-          }
-        } else {
-          removeFrom(removeFrom, removeSelector.matcher)
-        }
+    val zipOptimizer = object : ZipOptimizer(remover) {
+      @Throws(IOException::class)
+      override fun transformClass(name: String, bytes: ByteArray): ByteArray {
+        logger.info("Processing class $name") //$NON-NLS-1$
+        return super.transformClass(name, bytes)
       }
     }
-  }
-
-  @Throws(IOException::class)
-  private fun doWork(
-    srcFile: File,
-    remover: AnnotationReferenceRemover,
-    srcIsTarget: Boolean
-  ) {
-    val targetFile = File(
-      targetDir.asFile.get().absolutePath, srcFile.name
-    )
-    // reevaluate
-    logger.info("Processing file $srcFile") //$NON-NLS-1$
-    if (Util.isClass(srcFile.name)) {
-      createInputStream(
-        srcFile,
-        srcIsTarget
-      ).use { input ->
-        FileOutputStream(targetFile).use { output ->
-          remover.optimize(
-            input,
-            output
-          )
-        }
-      }
-    } else if (Util.isZip(srcFile.name)) {
-      ZipInputStream(
-        createInputStream(
-          srcFile,
-          srcIsTarget
-        )
-      ).use { input ->
-        ZipOutputStream(
-          FileOutputStream(targetFile)
-        ).use { output ->
-          object : ZipOptimizer(remover) {
-            @Throws(IOException::class)
-            override fun processClass(
-              name: String,
-              zis: ZipInputStream, zos: ZipOutputStream
-            ) {
-              logger.info("Processing class $name") //$NON-NLS-1$
-              super.processClass(name, zis, zos)
-            }
-          }.optimize(input, output)
-        }
+    val directoryOptimizer = object : DirectoryOptimizer(remover) {
+      @Throws(IOException::class)
+      override fun transformClass(path: Path, bytes: ByteArray): ByteArray {
+        logger.info("Processing class $path") //$NON-NLS-1$
+        return super.transformClass(path, bytes)
       }
     }
-  }
-
-  companion object {
-
-    @Throws(IOException::class)
-    private fun createInputStream(
-      srcFile: File,
-      srcIsTarget: Boolean
-    ): InputStream {
-      return if (srcIsTarget) readToMem(srcFile) else FileInputStream(srcFile)
+    val results = directoryOptimizer
+      .setZipOptimizer(zipOptimizer)
+      .setCompactZips(compact.get())
+      .setLink(link.get())
+      .setThreads(threads.get().takeIf { it > 0 } ?: Runtime.getRuntime().availableProcessors())
+      .optimize(sourceDir.asFile.get().toPath(), targetDir.asFile.get().toPath())
+    for (result in results) {
+      logger.info("Processed file ${result.path}: ${result.action}") //$NON-NLS-1$
     }
+  }
 
-    @Throws(IOException::class)
-    private fun readToMem(file: File): InputStream {
-      DataInputStream(
-        FileInputStream(
-          file
-        )
-      ).use { dis ->
-        return ByteArrayInputStream(dis.readAllBytes())
+  /**
+   * The remover is backed by an immutable [RemovalPlan], so the threads of the
+   * [DirectoryOptimizer] can share it.
+   */
+  private fun createConfigured(): AnnotationReferenceRemover {
+    val builder = RemovalPlan.builder()
+    for (removeSelector in selectors.get()) {
+      val removeFrom: RemoveFrom = removeSelector.from
+      if (removeFrom == RemoveFrom.ALL) {
+        for (tmp in RemoveFrom.values().filter { it != RemoveFrom.ALL }) {
+          builder.removeFrom(tmp, removeSelector.matcher)
+        }
+      } else {
+        builder.removeFrom(removeFrom, removeSelector.matcher)
       }
     }
+    return AnnotationReferenceRemover(builder.build())
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.ClassOptimizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.dyndns.fichtner.purgeannotationrefs.ClassFile.RECORD;
+import static org.dyndns.fichtner.purgeannotationrefs.ClassFile.isAnnotations;
+import static org.dyndns.fichtner.purgeannotationrefs.ClassFile.isParameterAnnotations;
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.*;
+import static org.dyndns.fichtner.purgeannotationrefs.Util.methodElement;
+
+/**
+ * Class for removing annotation references working directly on the class
+ * file structure: Only the annotation attributes of the class, its fields,
+ * methods and record components are rewritten, everything else is copied as
+ * it is. No visitors or symbol tables are built.
+ * <p>
+ * The annotations removed are those selected by the
+ * {@link AnnotationReferenceRemover} passed. If that one has a rewrite mode
+ * set (which cannot be honored without parsing the class) it is used for
+ * optimizing instead. Compacting the constant pool requires renumbering all
+ * references of the class, so modified classes are passed through ASM
+ * afterwards if the remover is configured to compact.
+ *
+ * @author Peter Fichtner
+ */
+public class AnnotationAttributeStripper implements ClassOptimizer {
+
+  private final AnnotationReferenceRemover configuration;
+
+  /**
+   * Creates a new instance removing the annotations the passed remover is
+   * configured for.
+   *
+   * @param configuration the remover holding the configuration
+   */
+  public AnnotationAttributeStripper(AnnotationReferenceRemover configuration) {
+    this.configuration = configuration;
+  }
+
+  /**
+   * Creates a new immutable instance removing the annotations as planned.
+   *
+   * @param plan the plan to execute
+   */
+  public AnnotationAttributeStripper(RemovalPlan plan) {
+    this(new AnnotationReferenceRemover(plan));
+  }
+
+  /**
+   * Writes the class back (replaces the existing class).
+   *
+   * @param inputStream  the stream to read from
+   * @param outputStream the stream to write to
+   * @throws IOException on write errors
+   */
+  @Override
+  public void optimize(InputStream inputStream, OutputStream outputStream) throws IOException {
+    outputStream.write(optimize(inputStream.readAllBytes()));
+  }
+
+  /**
+   * Returns the class with the annotations removed.
+   *
+   * @param classFile the class to remove the annotations from
+   * @return the class with the annotations removed or <code>classFile</code>
+   * itself if there was nothing to remove
+   */
+  @Override
+  public byte[] optimize(byte[] classFile) {
+    RemovalPlan plan = this.configuration.getPlan();
+    ClassFile parsed = plan.getRewriteMode().isEmpty() ? parse(classFile) : null;
+    if (parsed == null) {
+      return this.configuration.optimize(classFile);
+    }
+    byte[] stripped = new Stripper(parsed, plan, plan.configured()).strip();
+    return stripped != classFile && plan.isCompactConstantPool()
+        ? AnnotationReferenceRemover.compact(stripped) : stripped;
+  }
+
+  private static ClassFile parse(byte[] classFile) {
+    try {
+      return new ClassFile(classFile);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      // let ASM report what's wrong with this class
+      return null;
+    }
+  }
+
+  /**
+   * Copies a class file dropping the annotations to remove. Since annotations
+   * are only ever dropped the result fits into a buffer of the original's
+   * size.
+   */
+  private static final class Stripper {
+
+    private final ClassFile classFile;
+    private final byte[] in;
+    private final AnnotationFilter filter;
+    private final int configured;
+    private final byte[] out;
+    private int position;
+    private boolean modified;
+
+    private Stripper(ClassFile classFile, AnnotationFilter filter, int configured) {
+      this.classFile = classFile;
+      this.in = classFile.bytes();
+      this.filter = filter;
+      this.configured = configured;
+      this.out = new byte[this.in.length];
+    }
+
+    private byte[] strip() {
+      if (!this.classFile.mayContainAnnotation(this.filter, this.configured)) {
+        return this.in;
+      }
+      int offset = this.classFile.fieldsOffset();
+      copy(0, offset);
+      offset = members(offset, true);
+      offset = members(offset, false);
+      offset = attributes(offset, TYPES.mask(), 0, true);
+      copy(offset, this.in.length);
+      return this.modified ? Arrays.copyOf(this.out, this.position) : this.in;
+    }
+
+    private int members(int offset, boolean fields) {
+      int count = this.classFile.u2(offset);
+      copy(offset, offset + 2);
+      offset += 2;
+      for (int i = 0; i < count; i++) {
+        copy(offset, offset + 6);
+        int element = fields ? FIELDS.mask()
+            : methodElement(this.classFile.constantPool().utf8(this.classFile.u2(offset + 2)));
+        offset = attributes(offset + 6, element, fields ? 0 : PARAMETERS.mask(), false);
+      }
+      return offset;
+    }
+
+    private int attributes(int offset, int element, int parameterElement, boolean classLevel) {
+      element &= this.configured;
+      parameterElement &= this.configured;
+      int count = this.classFile.u2(offset);
+      copy(offset, offset + 2);
+      offset += 2;
+      for (int i = 0; i < count; i++) {
+        int end = this.classFile.attributeEnd(offset);
+        String name = this.classFile.attributeName(offset);
+        if (element != 0 && isAnnotations(name)) {
+          int length = beginAttribute(offset);
+          annotations(offset + 6, element);
+          endAttribute(length);
+        } else if (parameterElement != 0 && isParameterAnnotations(name)) {
+          int length = beginAttribute(offset);
+          parameterAnnotations(offset + 6, parameterElement);
+          endAttribute(length);
+        } else if (classLevel && (this.configured & RECORD_COMPONENTS.mask()) != 0 && RECORD.equals(name)) {
+          int length = beginAttribute(offset);
+          recordComponents(offset + 6);
+          endAttribute(length);
+        } else {
+          copy(offset, end);
+        }
+        offset = end;
+      }
+      return offset;
+    }
+
+    private void recordComponents(int offset) {
+      int count = this.classFile.u2(offset);
+      copy(offset, offset + 2);
+      offset += 2;
+      for (int i = 0; i < count; i++) {
+        copy(offset, offset + 4);
+        offset = attributes(offset + 4, RECORD_COMPONENTS.mask(), 0, false);
+      }
+    }
+
+    private int annotations(int offset, int element) {
+      int count = this.classFile.u2(offset);
+      int countPosition = this.position;
+      copy(offset, offset + 2);
+      offset += 2;
+      int kept = 0;
+      for (int i = 0; i < count; i++) {
+        int end = this.classFile.skipAnnotation(offset);
+        if (this.classFile.removes(offset, this.filter, element)) {
+          this.modified = true;
+        } else {
+          copy(offset, end);
+          kept++;
+        }
+        offset = end;
+      }
+      putShort(countPosition, kept);
+      return offset;
+    }
+
+    private void parameterAnnotations(int offset, int element) {
+      int parameters = this.in[offset] & 0xFF;
+      copy(offset, offset + 1);
+      offset++;
+      for (int i = 0; i < parameters; i++) {
+        offset = annotations(offset, element);
+      }
+    }
+
+    private int beginAttribute(int offset) {
+      copy(offset, offset + 6);
+      return this.position;
+    }
+
+    private void endAttribute(int start) {
+      int length = this.position - start;
+      this.out[start - 4] = (byte) (length >>> 24);
+      this.out[start - 3] = (byte) (length >>> 16);
+      this.out[start - 2] = (byte) (length >>> 8);
+      this.out[start - 1] = (byte) length;
+    }
+
+    private void putShort(int position, int value) {
+      this.out[position] = (byte) (value >>> 8);
+      this.out[position + 1] = (byte) value;
+    }
+
+    private void copy(int from, int to) {
+      System.arraycopy(this.in, from, this.out, this.position, to - from);
+      this.position += to - from;
+    }
+
+  }
+
+}
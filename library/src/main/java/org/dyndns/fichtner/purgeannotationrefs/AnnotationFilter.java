@@ -0,0 +1,21 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+/**
+ * Decides which elements an annotation should be removed from.
+ *
+ * @author Peter Fichtner
+ */
+@FunctionalInterface
+public interface AnnotationFilter {
+
+  /**
+   * Returns the elements the annotation with the passed descriptor should be
+   * removed from as a mask of {@link RemoveFrom#mask()} bits.
+   *
+   * @param desc the annotation's type descriptor (e.g. <code>Lcom/foo/Bar;</code>)
+   * @return mask of elements to remove the annotation from, <code>0</code> if
+   * the annotation should be retained everywhere
+   */
+  int targets(String desc);
+
+}
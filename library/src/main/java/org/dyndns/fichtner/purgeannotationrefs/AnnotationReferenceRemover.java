@@ -1,36 +1,53 @@
 package org.dyndns.fichtner.purgeannotationrefs;
 
 import org.dyndns.fichtner.purgeannotationrefs.optimizer.ClassOptimizer;
-import org.dyndns.fichtner.purgeannotationrefs.visitors.*;
+import org.dyndns.fichtner.purgeannotationrefs.visitors.AnnotationFilteringVisitor;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.*;
+import java.util.Set;
 import java.util.function.Predicate;
 
-import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.*;
-
 /**
  * Class for removing annotation references from classes (and their methods,
  * field, statements, ...)
+ * <p>
+ * Instances configured by their setters are not thread-safe, instances
+ * created for a {@link RemovalPlan} are immutable and can be shared by any
+ * number of threads.
  *
  * @author Peter Fichtner
  */
 public class AnnotationReferenceRemover implements ClassOptimizer {
 
-  private final Config config = new Config();
-  private Set<RewriteMode> rewriteMode = Collections.emptySet();
+  /**
+   * Default maximum count of annotation descriptors whose decisions are
+   * cached.
+   */
+  public static final int DEFAULT_CACHE_SIZE = RemovalPlan.DEFAULT_CACHE_SIZE;
+
+  private final RemovalPlan.Builder builder;
+  private volatile RemovalPlan plan;
 
   /**
    * Creates a new instance for the passed class (.class-file/bytecode). This
    * class must be readable.
    */
   public AnnotationReferenceRemover() {
-    super();
+    this.builder = RemovalPlan.builder();
+  }
+
+  /**
+   * Creates a new immutable instance removing the annotations as planned.
+   *
+   * @param plan the plan to execute
+   */
+  public AnnotationReferenceRemover(RemovalPlan plan) {
+    this.builder = null;
+    this.plan = plan;
   }
 
   private static int toInt(Iterable<RewriteMode> rewriteModes) {
@@ -41,6 +58,28 @@ public class AnnotationReferenceRemover implements ClassOptimizer {
     return value;
   }
 
+  private RemovalPlan.Builder configure() {
+    if (this.builder == null) {
+      throw new IllegalStateException("instances created for a RemovalPlan are immutable");
+    }
+    this.plan = null;
+    return this.builder;
+  }
+
+  /**
+   * Returns the plan this instance executes. For instances configured by
+   * their setters the plan is compiled on first use after each change.
+   *
+   * @return the plan this instance executes
+   */
+  public RemovalPlan getPlan() {
+    RemovalPlan plan = this.plan;
+    if (plan == null) {
+      this.plan = plan = this.builder.build();
+    }
+    return plan;
+  }
+
   /**
    * Remove the passed annotation from <b>all</b> elements (class/methods/...)
    * (if present).
@@ -63,7 +102,7 @@ public class AnnotationReferenceRemover implements ClassOptimizer {
    * @return this instance
    */
   public AnnotationReferenceRemover removeFrom(RemoveFrom removeFrom, Predicate<String> matcher) {
-    this.config.addFiltered(removeFrom, matcher);
+    configure().removeFrom(removeFrom, matcher);
     return this;
   }
 
@@ -73,55 +112,129 @@ public class AnnotationReferenceRemover implements ClassOptimizer {
    * @param rewriteMode the rewrite mode to set
    */
   public void setRewriteMode(Set<RewriteMode> rewriteMode) {
-    this.rewriteMode = rewriteMode;
+    configure().rewriteMode(rewriteMode);
   }
 
   /**
-   * Writes the class back (replaces the existing class).
+   * Compact the constant pool of classes annotations have been removed from:
+   * Entries only referenced by the removed annotations (descriptors, element
+   * names, enum constants, strings, ...) are dropped and the pool is
+   * renumbered, empty annotation attributes are dropped as well. This
+   * rebuilds the constant pool so methods of modified classes cannot be copied
+   * as they are.
    *
-   * @param inputStream  the stream to read from
-   * @param outputStream the stream to write to
-   * @throws IOException on write errors
+   * @param compactConstantPool <code>true</code> to compact the constant pool
+   * @return this instance
    */
-  public void optimize(InputStream inputStream, OutputStream outputStream) throws IOException {
-    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-    new ClassReader(inputStream).accept(createVisitors(classWriter), toInt(this.rewriteMode));
-    outputStream.write(classWriter.toByteArray());
+  public AnnotationReferenceRemover setCompactConstantPool(boolean compactConstantPool) {
+    configure().compactConstantPool(compactConstantPool);
+    return this;
   }
 
-  private AnnotationParameterVisitor createVisitors(ClassWriter classWriter) {
-    return createParameterVisitor(createFieldVisitor(createRecordComponentVisitor(createMethodVisitor(createConstructorVisitor(createClassVisitor(classWriter))))));
+  /**
+   * Set the maximum count of annotation descriptors whose decisions are
+   * cached. The cache is shared by all threads using this instance and is
+   * reset whenever the configuration changes.
+   *
+   * @param cacheSize the maximum count of cached descriptors
+   * @return this instance
+   */
+  public AnnotationReferenceRemover setCacheSize(int cacheSize) {
+    configure().cacheSize(cacheSize);
+    return this;
   }
 
-  private AnnotationParameterVisitor createParameterVisitor(ClassVisitor classVisitor) {
-    return configure(new AnnotationParameterVisitor(classVisitor), PARAMETERS);
+  /**
+   * Returns how many annotation lookups were answered by the cache.
+   *
+   * @return count of cache hits since the last configuration change
+   */
+  public long getCacheHits() {
+    return getPlan().getCacheHits();
   }
 
-  private AnnotationFieldVisitor createFieldVisitor(ClassVisitor classVisitor) {
-    return configure(new AnnotationFieldVisitor(classVisitor), FIELDS);
+  /**
+   * Returns how many annotation lookups had to be evaluated against the
+   * configured matchers.
+   *
+   * @return count of cache misses since the last configuration change
+   */
+  public long getCacheMisses() {
+    return getPlan().getCacheMisses();
   }
 
-  private AnnotationMethodVisitor createMethodVisitor(ClassVisitor classVisitor) {
-    return configure(new AnnotationMethodVisitor(classVisitor), METHODS);
+  /**
+   * Rewrites the passed class without sharing its constant pool so only the
+   * entries still referenced are written.
+   *
+   * @param classFile the class to compact
+   * @return the compacted class
+   */
+  static byte[] compact(byte[] classFile) {
+    ClassWriter classWriter = new ClassWriter(0);
+    new ClassReader(classFile).accept(classWriter, 0);
+    return classWriter.toByteArray();
   }
 
-  private AnnotationConstructorVisitor createConstructorVisitor(ClassVisitor classVisitor) {
-    return configure(new AnnotationConstructorVisitor(classVisitor), CONSTRUCTORS);
+  /**
+   * Writes the class back (replaces the existing class).
+   *
+   * @param inputStream  the stream to read from
+   * @param outputStream the stream to write to
+   * @throws IOException on write errors
+   */
+  public void optimize(InputStream inputStream, OutputStream outputStream) throws IOException {
+    outputStream.write(optimize(inputStream.readAllBytes()));
   }
 
-  private AnnotationClassVisitor createClassVisitor(ClassVisitor classVisitor) {
-    return configure(new AnnotationClassVisitor(classVisitor), TYPES);
+  /**
+   * Returns the class with the annotations removed.
+   *
+   * @param classFile the class to remove the annotations from
+   * @return the class with the annotations removed or <code>classFile</code>
+   * itself if there was nothing to remove
+   */
+  @Override
+  public byte[] optimize(byte[] classFile) {
+    RemovalPlan plan = getPlan();
+    return plan.getRewriteMode().isEmpty() ? copyThrough(plan, classFile) : rewrite(plan, classFile);
   }
 
-  private AnnotationRecordComponentVisitor createRecordComponentVisitor(ClassVisitor classVisitor) {
-    return configure(new AnnotationRecordComponentVisitor(classVisitor), RECORD_COMPONENTS);
+  /**
+   * Removes the annotations reusing as much as possible of the original class:
+   * Classes not carrying any annotation to remove are returned as they are.
+   * Otherwise the writer shares the constant pool of the reader and only the
+   * methods carrying annotations to remove are visited, all other methods are
+   * copied as they are. Since no instruction changes, nothing is recomputed.
+   * When compacting the constant pool the writer builds a new one instead.
+   */
+  private static byte[] copyThrough(RemovalPlan plan, byte[] classFile) {
+    ClassFile parsed;
+    try {
+      parsed = new ClassFile(classFile);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      // let ASM report what's wrong with this class
+      return rewrite(plan, classFile);
+    }
+    if (!parsed.mayContainAnnotation(plan, plan.configured())) {
+      return classFile;
+    }
+    ClassReader classReader = new ClassReader(classFile);
+    ClassWriter classWriter = plan.isCompactConstantPool() ? new ClassWriter(0) : new ClassWriter(classReader, 0);
+    AnnotationFilteringVisitor visitor = new AnnotationFilteringVisitor(classWriter, plan, plan.configured())
+        .onlyMethods(parsed.methodsToFilter(plan, plan.configured()));
+    classReader.accept(visitor, 0);
+    return visitor.isModified() ? classWriter.toByteArray() : classFile;
   }
 
-  private <T extends Filterable> T configure(T filteringVisitor, RemoveFrom removeFrom) {
-    for (Predicate<String> matcher : this.config.getFiltered(removeFrom)) {
-      filteringVisitor.addFiltered(matcher);
-    }
-    return filteringVisitor;
+  /**
+   * Rewrites the whole class honoring the rewrite mode.
+   */
+  private static byte[] rewrite(RemovalPlan plan, byte[] classFile) {
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    new ClassReader(classFile).accept(new AnnotationFilteringVisitor(classWriter, plan, plan.configured()),
+        toInt(plan.getRewriteMode()));
+    return classWriter.toByteArray();
   }
 
   /**
@@ -164,21 +277,4 @@ public class AnnotationReferenceRemover implements ClassOptimizer {
 
   }
 
-  private static class Config {
-
-    private final EnumMap<RemoveFrom, List<Predicate<String>>> map = new EnumMap<>(RemoveFrom.class);
-
-    public void addFiltered(RemoveFrom removeFrom, Predicate<String> matcher) {
-      if (removeFrom != ALL) {
-        List<Predicate<String>> data = this.map.computeIfAbsent(removeFrom, k -> new ArrayList<>());
-        data.add(matcher);
-      }
-    }
-
-    public List<Predicate<String>> getFiltered(RemoveFrom removeFrom) {
-      return this.map.getOrDefault(removeFrom, Collections.emptyList());
-    }
-
-  }
-
 }
@@ -0,0 +1,345 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+import java.util.BitSet;
+
+import static org.dyndns.fichtner.purgeannotationrefs.ConstantPool.readInt;
+import static org.dyndns.fichtner.purgeannotationrefs.ConstantPool.readUnsignedShort;
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.FIELDS;
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.PARAMETERS;
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.RECORD_COMPONENTS;
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.TYPES;
+import static org.dyndns.fichtner.purgeannotationrefs.Util.methodElement;
+
+/**
+ * Navigates the structure of a class file (see JVMS chapter 4) without
+ * building any objects for its members.
+ *
+ * @author Peter Fichtner
+ */
+final class ClassFile {
+
+  static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+  static final String RUNTIME_INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations";
+  static final String RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS = "RuntimeVisibleParameterAnnotations";
+  static final String RUNTIME_INVISIBLE_PARAMETER_ANNOTATIONS = "RuntimeInvisibleParameterAnnotations";
+  static final String RECORD = "Record";
+
+  private static final int QUERIED = 1 << 31;
+
+  private final byte[] b;
+  private final ConstantPool constantPool;
+  private final int fieldsOffset;
+
+  /**
+   * Creates a new instance for the passed class file.
+   *
+   * @param b the class file
+   * @throws IllegalArgumentException if the passed bytes are not a class file
+   */
+  ClassFile(byte[] b) {
+    this.b = b;
+    this.constantPool = new ConstantPool(b);
+    int interfacesOffset = this.constantPool.end() + 6;
+    this.fieldsOffset = interfacesOffset + 2 + 2 * readUnsignedShort(b, interfacesOffset);
+  }
+
+  static boolean isAnnotations(String attributeName) {
+    return RUNTIME_VISIBLE_ANNOTATIONS.equals(attributeName)
+        || RUNTIME_INVISIBLE_ANNOTATIONS.equals(attributeName);
+  }
+
+  static boolean isParameterAnnotations(String attributeName) {
+    return RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS.equals(attributeName)
+        || RUNTIME_INVISIBLE_PARAMETER_ANNOTATIONS.equals(attributeName);
+  }
+
+  byte[] bytes() {
+    return this.b;
+  }
+
+  ConstantPool constantPool() {
+    return this.constantPool;
+  }
+
+  /**
+   * Returns the offset of <code>fields_count</code>.
+   *
+   * @return the offset of <code>fields_count</code>
+   */
+  int fieldsOffset() {
+    return this.fieldsOffset;
+  }
+
+  /**
+   * Returns the offset of <code>methods_count</code>.
+   *
+   * @return the offset of <code>methods_count</code>
+   */
+  int methodsOffset() {
+    return skipMembers(this.fieldsOffset);
+  }
+
+  int u2(int offset) {
+    return readUnsignedShort(this.b, offset);
+  }
+
+  int u4(int offset) {
+    return readInt(this.b, offset);
+  }
+
+  /**
+   * Returns the name of the attribute starting at the passed offset.
+   *
+   * @param offset offset of the attribute
+   * @return the attribute's name
+   */
+  String attributeName(int offset) {
+    return this.constantPool.utf8(u2(offset));
+  }
+
+  /**
+   * Returns the offset following the attribute starting at the passed offset.
+   *
+   * @param offset offset of the attribute
+   * @return the offset following the attribute
+   */
+  int attributeEnd(int offset) {
+    return offset + 6 + u4(offset + 2);
+  }
+
+  /**
+   * Skips a <code>fields</code> or <code>methods</code> table.
+   *
+   * @param offset offset of the count of members
+   * @return the offset following the table
+   */
+  int skipMembers(int offset) {
+    int count = u2(offset);
+    offset += 2;
+    for (int i = 0; i < count; i++) {
+      offset = skipAttributes(offset + 6);
+    }
+    return offset;
+  }
+
+  /**
+   * Skips an <code>attributes</code> table.
+   *
+   * @param offset offset of the count of attributes
+   * @return the offset following the table
+   */
+  int skipAttributes(int offset) {
+    int count = u2(offset);
+    offset += 2;
+    for (int i = 0; i < count; i++) {
+      offset = attributeEnd(offset);
+    }
+    return offset;
+  }
+
+  /**
+   * Skips an <code>annotation</code> structure.
+   *
+   * @param offset offset of the annotation
+   * @return the offset following the annotation
+   */
+  int skipAnnotation(int offset) {
+    int pairs = u2(offset + 2);
+    offset += 4;
+    for (int i = 0; i < pairs; i++) {
+      offset = skipElementValue(offset + 2);
+    }
+    return offset;
+  }
+
+  private int skipElementValue(int offset) {
+    switch (this.b[offset]) {
+      case 'e':
+        return offset + 5;
+      case '@':
+        return skipAnnotation(offset + 1);
+      case '[':
+        int values = u2(offset + 1);
+        offset += 3;
+        for (int i = 0; i < values; i++) {
+          offset = skipElementValue(offset);
+        }
+        return offset;
+      default:
+        return offset + 3;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the annotation starting at the passed offset
+   * has to be removed from one of the passed elements.
+   *
+   * @param offset   offset of the annotation
+   * @param filter   the filter to query
+   * @param elements mask of elements
+   * @return <code>true</code> if the annotation has to be removed
+   */
+  boolean removes(int offset, AnnotationFilter filter, int elements) {
+    return (filter.targets(this.constantPool.utf8(u2(offset))) & elements) != 0;
+  }
+
+  private boolean removesAny(int offset, int count, AnnotationFilter filter, int elements) {
+    for (int i = 0; i < count; i++) {
+      if (removes(offset, filter, elements)) {
+        return true;
+      }
+      offset = skipAnnotation(offset);
+    }
+    return false;
+  }
+
+  private boolean removesAnyParameterAnnotation(int offset, AnnotationFilter filter, int elements) {
+    int parameters = this.b[offset] & 0xFF;
+    offset++;
+    for (int i = 0; i < parameters; i++) {
+      int count = u2(offset);
+      if (removesAny(offset + 2, count, filter, elements)) {
+        return true;
+      }
+      offset += 2;
+      for (int j = 0; j < count; j++) {
+        offset = skipAnnotation(offset);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns <code>true</code> if the class, one of its fields, methods or
+   * record components carries an annotation the filter removes from that
+   * element. Only the types of the annotations actually present are
+   * queried (each one once), so the filter does not see any other
+   * descriptors of the constant pool. If not, the class does not have to be
+   * processed at all.
+   *
+   * @param filter     the filter to query
+   * @param configured mask of the elements the filter removes annotations from
+   * @return <code>true</code> if the class contains an annotation to remove
+   */
+  boolean mayContainAnnotation(AnnotationFilter filter, int configured) {
+    // per constant pool index the targets of the annotation type, 0 if not queried yet
+    int[] targets = new int[this.constantPool.count()];
+    int offset = this.fieldsOffset;
+    for (int table = 0; table < 2; table++) {
+      boolean fields = table == 0;
+      int count = u2(offset);
+      offset += 2;
+      for (int i = 0; i < count; i++) {
+        int element = fields ? FIELDS.mask() : methodElement(this.constantPool.utf8(u2(offset + 2)));
+        if (annotatesAny(offset + 6, element & configured, fields ? 0 : PARAMETERS.mask() & configured,
+            filter, targets)) {
+          return true;
+        }
+        offset = skipAttributes(offset + 6);
+      }
+    }
+    if (annotatesAny(offset, TYPES.mask() & configured, 0, filter, targets)) {
+      return true;
+    }
+    if ((RECORD_COMPONENTS.mask() & configured) != 0) {
+      int count = u2(offset);
+      offset += 2;
+      for (int i = 0; i < count; i++) {
+        if (RECORD.equals(attributeName(offset))) {
+          int components = u2(offset + 6);
+          int component = offset + 8;
+          for (int j = 0; j < components; j++) {
+            if (annotatesAny(component + 4, RECORD_COMPONENTS.mask(), 0, filter, targets)) {
+              return true;
+            }
+            component = skipAttributes(component + 4);
+          }
+        }
+        offset = attributeEnd(offset);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns <code>true</code> if the annotation attributes of the
+   * <code>attributes</code> table starting at the passed offset contain an
+   * annotation to remove.
+   */
+  private boolean annotatesAny(int offset, int element, int parameterElement,
+                               AnnotationFilter filter, int[] targets) {
+    if (element == 0 && parameterElement == 0) {
+      return false;
+    }
+    int count = u2(offset);
+    offset += 2;
+    for (int i = 0; i < count; i++) {
+      String name = attributeName(offset);
+      if (element != 0 && isAnnotations(name)) {
+        int annotations = u2(offset + 6);
+        int annotation = offset + 8;
+        for (int j = 0; j < annotations; j++) {
+          if (removes(annotation, filter, element, targets)) {
+            return true;
+          }
+          annotation = skipAnnotation(annotation);
+        }
+      } else if (parameterElement != 0 && isParameterAnnotations(name)) {
+        int parameters = this.b[offset + 6] & 0xFF;
+        int annotation = offset + 7;
+        for (int j = 0; j < parameters; j++) {
+          int annotations = u2(annotation);
+          annotation += 2;
+          for (int k = 0; k < annotations; k++) {
+            if (removes(annotation, filter, parameterElement, targets)) {
+              return true;
+            }
+            annotation = skipAnnotation(annotation);
+          }
+        }
+      }
+      offset = attributeEnd(offset);
+    }
+    return false;
+  }
+
+  private boolean removes(int offset, AnnotationFilter filter, int elements, int[] targets) {
+    int index = u2(offset);
+    if (targets[index] == 0) {
+      targets[index] = QUERIED | filter.targets(this.constantPool.utf8(index));
+    }
+    return (targets[index] & elements) != 0;
+  }
+
+  /**
+   * Returns the indices (in class file order) of the methods carrying at
+   * least one annotation the filter removes.
+   *
+   * @param filter     the filter to query
+   * @param configured mask of the elements the filter removes annotations from
+   * @return indices of the methods with annotations to remove
+   */
+  BitSet methodsToFilter(AnnotationFilter filter, int configured) {
+    int offset = methodsOffset();
+    int count = u2(offset);
+    offset += 2;
+    BitSet methods = new BitSet(count);
+    for (int i = 0; i < count; i++) {
+      int element = methodElement(this.constantPool.utf8(u2(offset + 2))) & configured;
+      int parameters = PARAMETERS.mask() & configured;
+      int attributes = u2(offset + 6);
+      offset += 8;
+      for (int j = 0; j < attributes; j++) {
+        String name = attributeName(offset);
+        if (isAnnotations(name) && element != 0 && removesAny(offset + 8, u2(offset + 6), filter, element)
+            || isParameterAnnotations(name) && parameters != 0
+            && removesAnyParameterAnnotation(offset + 6, filter, parameters)) {
+          methods.set(i);
+        }
+        offset = attributeEnd(offset);
+      }
+    }
+    return methods;
+  }
+
+}
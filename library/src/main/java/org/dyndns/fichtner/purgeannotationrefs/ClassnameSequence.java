@@ -0,0 +1,46 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+/**
+ * Reusable view presenting an object type descriptor (e.g.
+ * <code>Lcom/foo/Bar;</code>) as java classname (<code>com.foo.Bar</code>)
+ * without copying it.
+ *
+ * @author Peter Fichtner
+ */
+final class ClassnameSequence implements CharSequence {
+
+  private String desc = "L;";
+
+  /**
+   * Let this view present the passed descriptor.
+   *
+   * @param desc the object type descriptor to present
+   * @return this instance
+   */
+  ClassnameSequence of(String desc) {
+    this.desc = desc;
+    return this;
+  }
+
+  @Override
+  public int length() {
+    return this.desc.length() - 2;
+  }
+
+  @Override
+  public char charAt(int index) {
+    char c = this.desc.charAt(index + 1);
+    return c == '/' ? '.' : c;
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().substring(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return this.desc.substring(1, this.desc.length() - 1).replace('/', '.');
+  }
+
+}
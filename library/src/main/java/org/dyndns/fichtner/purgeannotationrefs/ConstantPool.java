@@ -0,0 +1,137 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+/**
+ * Minimal read-only view on the constant pool of a class file. Only the
+ * offsets of the entries are computed up front, UTF8 entries are decoded on
+ * demand.
+ *
+ * @author Peter Fichtner
+ */
+final class ConstantPool {
+
+  static final int UTF8 = 1;
+
+  private static final int MAGIC = 0xCAFEBABE;
+  private static final int POOL_OFFSET = 10;
+
+  private final byte[] b;
+  private final int[] offsets;
+  private final String[] utf8s;
+  private final int end;
+
+  /**
+   * Computes the offsets of the constant pool entries of the passed class
+   * file.
+   *
+   * @param b the class file
+   * @throws IllegalArgumentException if the passed bytes are not a class file
+   *                                  or contain unknown constant pool entries
+   */
+  ConstantPool(byte[] b) {
+    this.b = b;
+    if (b.length < POOL_OFFSET || readInt(b, 0) != MAGIC) {
+      throw new IllegalArgumentException("not a class file");
+    }
+    int count = readUnsignedShort(b, POOL_OFFSET - 2);
+    this.offsets = new int[count];
+    this.utf8s = new String[count];
+    int offset = POOL_OFFSET;
+    for (int i = 1; i < count; i++) {
+      this.offsets[i] = offset;
+      int tag = b[offset];
+      offset += 1 + size(tag, offset);
+      if (tag == 5 || tag == 6) {
+        i++;
+      }
+    }
+    this.end = offset;
+  }
+
+  private int size(int tag, int offset) {
+    switch (tag) {
+      case UTF8:
+        return 2 + readUnsignedShort(this.b, offset + 1);
+      case 7: // Class
+      case 8: // String
+      case 16: // MethodType
+      case 19: // Module
+      case 20: // Package
+        return 2;
+      case 15: // MethodHandle
+        return 3;
+      case 3: // Integer
+      case 4: // Float
+      case 9: // Fieldref
+      case 10: // Methodref
+      case 11: // InterfaceMethodref
+      case 12: // NameAndType
+      case 17: // Dynamic
+      case 18: // InvokeDynamic
+        return 4;
+      case 5: // Long
+      case 6: // Double
+        return 8;
+      default:
+        throw new IllegalArgumentException("unknown constant pool tag " + tag + " at " + offset);
+    }
+  }
+
+  static int readUnsignedShort(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  static int readInt(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+        | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+  }
+
+  /**
+   * Returns the count of constant pool slots (<code>constant_pool_count</code>).
+   *
+   * @return the count of constant pool slots
+   */
+  int count() {
+    return this.offsets.length;
+  }
+
+  /**
+   * Returns the offset of the first byte following the constant pool.
+   *
+   * @return the offset of the first byte following the constant pool
+   */
+  int end() {
+    return this.end;
+  }
+
+  /**
+   * Returns the decoded UTF8 entry at the passed index.
+   *
+   * @param index the constant pool index of a UTF8 entry
+   * @return the decoded String
+   */
+  String utf8(int index) {
+    String value = this.utf8s[index];
+    if (value == null) {
+      int offset = this.offsets[index];
+      this.utf8s[index] = value = decode(offset + 3, readUnsignedShort(this.b, offset + 1));
+    }
+    return value;
+  }
+
+  private String decode(int offset, int length) {
+    char[] chars = new char[length];
+    int count = 0;
+    for (int i = offset, end = offset + length; i < end; ) {
+      int c = this.b[i++] & 0xFF;
+      if (c < 0x80) {
+        chars[count++] = (char) c;
+      } else if (c < 0xE0) {
+        chars[count++] = (char) (((c & 0x1F) << 6) | (this.b[i++] & 0x3F));
+      } else {
+        chars[count++] = (char) (((c & 0x0F) << 12) | ((this.b[i++] & 0x3F) << 6) | (this.b[i++] & 0x3F));
+      }
+    }
+    return new String(chars, 0, count);
+  }
+
+}
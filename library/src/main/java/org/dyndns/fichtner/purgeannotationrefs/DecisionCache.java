@@ -0,0 +1,61 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache memoizing the decisions of an {@link AnnotationFilter}
+ * per annotation descriptor. The cache is bounded: once it holds
+ * <code>maxSize</code> descriptors further decisions are still computed but
+ * no longer cached.
+ *
+ * @author Peter Fichtner
+ */
+final class DecisionCache implements AnnotationFilter {
+
+  private final AnnotationFilter delegate;
+  private final int maxSize;
+  private final Map<String, Integer> decisions = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Creates a new cache for the passed filter.
+   *
+   * @param delegate the filter computing the decisions
+   * @param maxSize  the maximum count of descriptors to cache
+   */
+  DecisionCache(AnnotationFilter delegate, int maxSize) {
+    this.delegate = delegate;
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public int targets(String desc) {
+    Integer cached = this.decisions.get(desc);
+    if (cached != null) {
+      this.hits.increment();
+      return cached;
+    }
+    this.misses.increment();
+    int targets = this.delegate.targets(desc);
+    if (this.decisions.size() < this.maxSize) {
+      this.decisions.put(desc, targets);
+    }
+    return targets;
+  }
+
+  long hits() {
+    return this.hits.sum();
+  }
+
+  long misses() {
+    return this.misses.sum();
+  }
+
+  int size() {
+    return this.decisions.size();
+  }
+
+}
@@ -0,0 +1,21 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+/**
+ * Implementations are able to match annotations by their raw type descriptor
+ * (e.g. <code>Lcom/foo/Bar;</code>) without translating it into a java
+ * classname first.
+ *
+ * @author Peter Fichtner
+ */
+@FunctionalInterface
+public interface DescriptorMatcher {
+
+  /**
+   * Returns <code>true</code> if the passed type descriptor matches.
+   *
+   * @param desc the type descriptor to check
+   * @return <code>true</code> if the passed type descriptor matches
+   */
+  boolean matchesDescriptor(String desc);
+
+}
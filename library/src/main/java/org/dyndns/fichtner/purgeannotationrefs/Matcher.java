@@ -17,9 +17,10 @@ public interface Matcher<T> extends Predicate<T> {
    *
    * @author Peter Fichtner
    */
-  class StringMatcher implements Matcher<String> {
+  class StringMatcher implements Matcher<String>, DescriptorMatcher {
 
     private final String pattern;
+    private final String descriptor;
 
     /**
      * Creates a new StringMatcher that matches if the passed string is
@@ -29,12 +30,27 @@ public interface Matcher<T> extends Predicate<T> {
      */
     public StringMatcher(final String name) {
       this.pattern = name;
+      this.descriptor = Util.classnameToDescriptor(name);
+    }
+
+    /**
+     * Returns the name this matcher compares to.
+     *
+     * @return the name this matcher compares to
+     */
+    public String getName() {
+      return this.pattern;
     }
 
     public boolean test(final String string) {
       return this.pattern.equals(string);
     }
 
+    @Override
+    public boolean matchesDescriptor(final String desc) {
+      return this.descriptor.equals(desc);
+    }
+
   }
 
   /**
@@ -42,9 +58,10 @@ public interface Matcher<T> extends Predicate<T> {
    *
    * @author Peter Fichtner
    */
-  class RegExpMatcher implements Matcher<String> {
+  class RegExpMatcher implements Matcher<String>, DescriptorMatcher {
 
     private final Pattern pattern;
+    private final ThreadLocal<DescriptorState> states;
 
     /**
      * Creates a new RegExpMatcher that matches using the passed pattern.
@@ -53,12 +70,123 @@ public interface Matcher<T> extends Predicate<T> {
      */
     public RegExpMatcher(final Pattern pattern) {
       this.pattern = pattern;
+      this.states = ThreadLocal.withInitial(() -> new DescriptorState(pattern));
+    }
+
+    /**
+     * Returns the pattern this matcher uses.
+     *
+     * @return the pattern this matcher uses
+     */
+    public Pattern getPattern() {
+      return this.pattern;
     }
 
     public boolean test(final String string) {
       return this.pattern.matcher(string).matches();
     }
 
+    @Override
+    public boolean matchesDescriptor(final String desc) {
+      return this.states.get().matches(desc);
+    }
+
+    /**
+     * Per thread state so matching a descriptor does not allocate.
+     */
+    private static final class DescriptorState {
+
+      private final ClassnameSequence classname = new ClassnameSequence();
+      private final java.util.regex.Matcher matcher;
+
+      private DescriptorState(final Pattern pattern) {
+        this.matcher = pattern.matcher(this.classname);
+      }
+
+      private boolean matches(final String desc) {
+        this.classname.of(desc);
+        return this.matcher.reset().matches();
+      }
+
+    }
+
+  }
+
+  /**
+   * A glob based matcher. <code>*</code> matches any characters but the
+   * package separator, <code>**</code> matches any characters and
+   * <code>?</code> matches exactly one character but the package separator,
+   * e.g. <code>javax.annotation.*</code> matches all annotations inside the
+   * package <code>javax.annotation</code> while <code>io.swagger.**</code>
+   * also matches those of its subpackages. Other names than class names can
+   * be matched by passing their separator, e.g. <code>/</code> for paths.
+   *
+   * @author Peter Fichtner
+   */
+  class GlobMatcher extends RegExpMatcher {
+
+    private final String glob;
+
+    /**
+     * Creates a new GlobMatcher that matches using the passed glob.
+     *
+     * @param glob the glob to use
+     */
+    public GlobMatcher(final String glob) {
+      this(glob, '.');
+    }
+
+    /**
+     * Creates a new GlobMatcher that matches using the passed glob, the
+     * wildcards but <code>**</code> do not match the passed separator.
+     *
+     * @param glob      the glob to use
+     * @param separator the separator of the names matched, <code>.</code> for
+     *                  class names
+     */
+    public GlobMatcher(final String glob, final char separator) {
+      super(Pattern.compile(toRegExp(glob, separator)));
+      this.glob = glob;
+    }
+
+    private static String toRegExp(final String glob, final char separator) {
+      final String notSeparator = "[^" + (Character.isLetterOrDigit(separator) ? "" : "\\") + separator + "]";
+      final StringBuilder regExp = new StringBuilder(glob.length() * 2);
+      final StringBuilder literal = new StringBuilder();
+      for (int i = 0; i < glob.length(); i++) {
+        final char c = glob.charAt(i);
+        if (c == '*' || c == '?') {
+          if (literal.length() > 0) {
+            regExp.append(Pattern.quote(literal.toString()));
+            literal.setLength(0);
+          }
+          if (c == '?') {
+            regExp.append(notSeparator);
+          } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+            regExp.append(".*");
+            i++;
+          } else {
+            regExp.append(notSeparator).append('*');
+          }
+        } else {
+          literal.append(c);
+        }
+      }
+      if (literal.length() > 0) {
+        regExp.append(Pattern.quote(literal.toString()));
+      }
+      return regExp.toString();
+    }
+
+    /**
+     * Returns the glob this matcher uses.
+     *
+     * @return the glob this matcher uses
+     */
+    public String getGlob() {
+      return this.glob;
+    }
+
   }
 
-}
\ No newline at end of file
+}
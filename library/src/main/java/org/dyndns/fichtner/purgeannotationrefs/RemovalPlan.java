@@ -0,0 +1,203 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover.RewriteMode;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.ALL;
+
+/**
+ * Immutable, compiled configuration of which annotations to remove from
+ * which elements: The selectors are compiled into lookup structures once and
+ * the decisions are cached per annotation descriptor.
+ * <p>
+ * A plan is safe to be used by any number of threads concurrently, e.g. by
+ * sharing one {@link AnnotationReferenceRemover} created by
+ * {@link AnnotationReferenceRemover#AnnotationReferenceRemover(RemovalPlan)}
+ * between the workers of a pool. Custom matchers passed to the builder have
+ * to be thread-safe as well, the matchers of {@link Matcher} are.
+ *
+ * @author Peter Fichtner
+ */
+public final class RemovalPlan implements AnnotationFilter {
+
+  /**
+   * Default maximum count of annotation descriptors whose decisions are
+   * cached.
+   */
+  public static final int DEFAULT_CACHE_SIZE = 16384;
+
+  private final int configured;
+  private final Set<RewriteMode> rewriteMode;
+  private final boolean compactConstantPool;
+  private final DecisionCache cache;
+
+  private RemovalPlan(Builder builder) {
+    this.configured = builder.configured;
+    this.rewriteMode = builder.rewriteMode.isEmpty() ? Collections.emptySet()
+        : Collections.unmodifiableSet(EnumSet.copyOf(builder.rewriteMode));
+    this.compactConstantPool = builder.compactConstantPool;
+    this.cache = new DecisionCache(new SelectorIndex(builder.selectors), builder.cacheSize);
+  }
+
+  /**
+   * Creates a new builder for a plan.
+   *
+   * @return a new builder
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  @Override
+  public int targets(String desc) {
+    return this.cache.targets(desc);
+  }
+
+  /**
+   * Returns the mask of the elements at least one selector removes
+   * annotations from.
+   *
+   * @return mask of {@link RemoveFrom#mask()} bits
+   */
+  public int configured() {
+    return this.configured;
+  }
+
+  /**
+   * Returns the rewrite mode.
+   *
+   * @return the (unmodifiable) rewrite mode
+   */
+  public Set<RewriteMode> getRewriteMode() {
+    return this.rewriteMode;
+  }
+
+  /**
+   * Returns <code>true</code> if the constant pool of modified classes is
+   * compacted.
+   *
+   * @return <code>true</code> if the constant pool is compacted
+   */
+  public boolean isCompactConstantPool() {
+    return this.compactConstantPool;
+  }
+
+  /**
+   * Returns how many annotation lookups were answered by the cache.
+   *
+   * @return count of cache hits
+   */
+  public long getCacheHits() {
+    return this.cache.hits();
+  }
+
+  /**
+   * Returns how many annotation lookups had to be evaluated against the
+   * configured matchers.
+   *
+   * @return count of cache misses
+   */
+  public long getCacheMisses() {
+    return this.cache.misses();
+  }
+
+  /**
+   * Builder for {@link RemovalPlan}s. Builders are not thread-safe.
+   *
+   * @author Peter Fichtner
+   */
+  public static final class Builder {
+
+    private final Map<Predicate<String>, Integer> selectors = new LinkedHashMap<>();
+    private int configured;
+    private Set<RewriteMode> rewriteMode = Collections.emptySet();
+    private boolean compactConstantPool;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    private Builder() {
+      super();
+    }
+
+    /**
+     * Remove the passed annotation from <b>all</b> elements (class/methods/...)
+     * (if present).
+     *
+     * @param matcher the annotation that should be removed
+     * @return this instance
+     */
+    public Builder remove(Predicate<String> matcher) {
+      for (RemoveFrom removeFrom : RemoveFrom.values()) {
+        removeFrom(removeFrom, matcher);
+      }
+      return this;
+    }
+
+    /**
+     * Remove the passed annotation from the passed elements (if present).
+     *
+     * @param removeFrom remove from which elements
+     * @param matcher    the annotation that should be removed
+     * @return this instance
+     */
+    public Builder removeFrom(RemoveFrom removeFrom, Predicate<String> matcher) {
+      if (removeFrom != ALL) {
+        this.selectors.merge(matcher, removeFrom.mask(), (a, b) -> a | b);
+        this.configured |= removeFrom.mask();
+      }
+      return this;
+    }
+
+    /**
+     * Set the rewrite mode.
+     *
+     * @param rewriteMode the rewrite mode to set
+     * @return this instance
+     */
+    public Builder rewriteMode(Set<RewriteMode> rewriteMode) {
+      this.rewriteMode = rewriteMode;
+      return this;
+    }
+
+    /**
+     * Compact the constant pool of classes annotations have been removed
+     * from, see {@link AnnotationReferenceRemover#setCompactConstantPool(boolean)}.
+     *
+     * @param compactConstantPool <code>true</code> to compact the constant pool
+     * @return this instance
+     */
+    public Builder compactConstantPool(boolean compactConstantPool) {
+      this.compactConstantPool = compactConstantPool;
+      return this;
+    }
+
+    /**
+     * Set the maximum count of annotation descriptors whose decisions are
+     * cached.
+     *
+     * @param cacheSize the maximum count of cached descriptors
+     * @return this instance
+     */
+    public Builder cacheSize(int cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+
+    /**
+     * Compiles the configuration into a plan. The builder can be used further
+     * on, changes do not affect plans already built.
+     *
+     * @return the compiled plan
+     */
+    public RemovalPlan build() {
+      return new RemovalPlan(this);
+    }
+
+  }
+
+}
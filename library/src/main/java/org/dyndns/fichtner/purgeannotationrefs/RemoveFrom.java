@@ -48,6 +48,16 @@ public enum RemoveFrom {
   /**
    * Represents every supported element
    */
-  ALL
+  ALL;
+
+  /**
+   * Returns the bit representing this element inside an int mask of
+   * elements. {@link #ALL} returns the mask of every supported element.
+   *
+   * @return the bit(s) representing this element
+   */
+  public int mask() {
+    return this == ALL ? (1 << ALL.ordinal()) - 1 : 1 << ordinal();
+  }
 
 }
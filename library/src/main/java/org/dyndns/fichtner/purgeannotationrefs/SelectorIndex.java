@@ -0,0 +1,184 @@
+package org.dyndns.fichtner.purgeannotationrefs;
+
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.GlobMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.RegExpMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import static org.dyndns.fichtner.purgeannotationrefs.Util.classnameToDescriptor;
+import static org.dyndns.fichtner.purgeannotationrefs.Util.toDescriptorMatcher;
+
+/**
+ * Selectors compiled into lookup structures so that the cost of a lookup does
+ * not grow with the number of configured selectors:
+ * <ol>
+ * <li>{@link StringMatcher}s are kept in a hash map keyed by descriptor</li>
+ * <li>{@link GlobMatcher}s selecting whole packages (<code>a.b.*</code>,
+ * <code>a.b.**</code>) are kept in a package prefix trie</li>
+ * <li>all remaining {@link RegExpMatcher}s sharing the same elements are
+ * combined into one pattern</li>
+ * <li>any other matcher is tested one after another</li>
+ * </ol>
+ *
+ * @author Peter Fichtner
+ */
+final class SelectorIndex implements AnnotationFilter {
+
+  private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(\\d|k<)");
+
+  private final Map<String, Integer> names = new HashMap<>();
+  private final PackageNode packages = new PackageNode();
+  private final List<Selector> selectors = new ArrayList<>();
+
+  /**
+   * Compiles the passed selectors.
+   *
+   * @param selectors the matchers mapped to the mask of elements they remove
+   *                  the annotation from
+   */
+  SelectorIndex(Map<Predicate<String>, Integer> selectors) {
+    Map<Integer, List<Pattern>> regExps = new LinkedHashMap<>();
+    for (Map.Entry<Predicate<String>, Integer> entry : selectors.entrySet()) {
+      Predicate<String> matcher = entry.getKey();
+      int mask = entry.getValue();
+      if (matcher instanceof StringMatcher) {
+        this.names.merge(classnameToDescriptor(((StringMatcher) matcher).getName()), mask, (a, b) -> a | b);
+      } else if (matcher instanceof GlobMatcher && isPackageGlob(((GlobMatcher) matcher).getGlob())) {
+        addPackageGlob(((GlobMatcher) matcher).getGlob(), mask);
+      } else if (matcher instanceof RegExpMatcher && isCombinable(((RegExpMatcher) matcher).getPattern())) {
+        regExps.computeIfAbsent(mask, k -> new ArrayList<>()).add(((RegExpMatcher) matcher).getPattern());
+      } else {
+        this.selectors.add(new Selector(toDescriptorMatcher(matcher), mask));
+      }
+    }
+    for (Map.Entry<Integer, List<Pattern>> entry : regExps.entrySet()) {
+      for (RegExpMatcher matcher : combine(entry.getValue())) {
+        this.selectors.add(new Selector(matcher, entry.getKey()));
+      }
+    }
+  }
+
+  private static boolean isPackageGlob(String glob) {
+    if (!glob.endsWith("*")) {
+      return false;
+    }
+    String pkg = glob.substring(0, glob.length() - (glob.endsWith("**") ? 2 : 1));
+    return (pkg.isEmpty() || pkg.endsWith(".")) && pkg.indexOf('*') < 0 && pkg.indexOf('?') < 0;
+  }
+
+  private static boolean isCombinable(Pattern pattern) {
+    return pattern.flags() == 0 && !BACK_REFERENCE.matcher(pattern.pattern()).find();
+  }
+
+  private static List<RegExpMatcher> combine(List<Pattern> patterns) {
+    if (patterns.size() > 1) {
+      try {
+        return List.of(new RegExpMatcher(Pattern.compile(patterns.stream()
+            .map(p -> "(?:" + p.pattern() + ")").collect(Collectors.joining("|")))));
+      } catch (PatternSyntaxException e) {
+        // e.g. duplicate named groups, keep them separated
+      }
+    }
+    return patterns.stream().map(RegExpMatcher::new).collect(Collectors.toList());
+  }
+
+  private void addPackageGlob(String glob, int mask) {
+    boolean subpackages = glob.endsWith("**");
+    String pkg = glob.substring(0, glob.length() - (subpackages ? 2 : 1)).replace('.', '/');
+    PackageNode node = this.packages;
+    for (int i = 0; i < pkg.length(); i++) {
+      node = node.add(pkg.charAt(i));
+    }
+    if (subpackages) {
+      node.subpackages |= mask;
+    } else {
+      node.members |= mask;
+    }
+  }
+
+  @Override
+  public int targets(String desc) {
+    Integer named = this.names.get(desc);
+    int targets = named == null ? 0 : named;
+    targets |= packageTargets(desc);
+    for (Selector selector : this.selectors) {
+      if ((targets & selector.mask) != selector.mask && selector.matcher.matchesDescriptor(desc)) {
+        targets |= selector.mask;
+      }
+    }
+    return targets;
+  }
+
+  private int packageTargets(String desc) {
+    int lastSlash = desc.lastIndexOf('/');
+    PackageNode node = this.packages;
+    int targets = node.subpackages | (lastSlash < 0 ? node.members : 0);
+    for (int i = 1; i <= lastSlash; i++) {
+      char c = desc.charAt(i);
+      if ((node = node.get(c)) == null) {
+        break;
+      }
+      if (c == '/') {
+        targets |= node.subpackages | (i == lastSlash ? node.members : 0);
+      }
+    }
+    return targets;
+  }
+
+  /**
+   * Node of the package prefix trie, one node per character of the internal
+   * package name (<code>javax/annotation/</code>).
+   */
+  private static final class PackageNode {
+
+    private char[] chars = new char[0];
+    private PackageNode[] children = new PackageNode[0];
+    private int members;
+    private int subpackages;
+
+    private PackageNode get(char c) {
+      for (int i = 0; i < this.chars.length; i++) {
+        if (this.chars[i] == c) {
+          return this.children[i];
+        }
+      }
+      return null;
+    }
+
+    private PackageNode add(char c) {
+      PackageNode child = get(c);
+      if (child == null) {
+        child = new PackageNode();
+        this.chars = Arrays.copyOf(this.chars, this.chars.length + 1);
+        this.children = Arrays.copyOf(this.children, this.children.length + 1);
+        this.chars[this.chars.length - 1] = c;
+        this.children[this.children.length - 1] = child;
+      }
+      return child;
+    }
+
+  }
+
+  private static final class Selector {
+
+    private final DescriptorMatcher matcher;
+    private final int mask;
+
+    private Selector(DescriptorMatcher matcher, int mask) {
+      this.matcher = matcher;
+      this.mask = mask;
+    }
+
+  }
+
+}
@@ -26,6 +26,30 @@ public final class Util {
     return Type.getType(type).getClassName();
   }
 
+  /**
+   * Translate the passed java classname into an Asm type descriptor.
+   *
+   * @param classname the classname to translate
+   * @return the type descriptor
+   */
+  public static String classnameToDescriptor(final String classname) {
+    return 'L' + classname.replace('.', '/') + ';';
+  }
+
+  /**
+   * Returns a matcher working on type descriptors for the passed matcher
+   * working on java classnames. Matchers already implementing
+   * {@link DescriptorMatcher} are returned as they are, all others translate
+   * each descriptor into its classname before matching.
+   *
+   * @param matcher the matcher to translate
+   * @return matcher working on type descriptors
+   */
+  public static DescriptorMatcher toDescriptorMatcher(final Predicate<String> matcher) {
+    return matcher instanceof DescriptorMatcher ? (DescriptorMatcher) matcher
+        : desc -> matcher.test(typeToClassname(desc));
+  }
+
   /**
    * Returns <code>true</code> if the passed name is a method.
    *
@@ -36,6 +60,22 @@ public final class Util {
     return !isConstructor(name) && !isStaticConstructor(name);
   }
 
+  /**
+   * Returns the {@link RemoveFrom#mask()} of the element a method with the
+   * passed name belongs to: {@link RemoveFrom#CONSTRUCTORS} for constructors,
+   * {@link RemoveFrom#METHODS} for methods and <code>0</code> for static
+   * constructors.
+   *
+   * @param name name of the method
+   * @return mask of the element the method belongs to
+   */
+  public static int methodElement(final String name) {
+    if (isConstructor(name)) {
+      return RemoveFrom.CONSTRUCTORS.mask();
+    }
+    return isMethod(name) ? RemoveFrom.METHODS.mask() : 0;
+  }
+
   /**
    * Returns <code>true</code> if the passed name is a constructor.
    *
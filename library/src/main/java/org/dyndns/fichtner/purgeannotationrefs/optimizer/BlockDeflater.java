@@ -0,0 +1,86 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data into a raw deflate stream. Data larger than
+ * {@link #BLOCK_SIZE} is split into blocks compressed independently (each
+ * one primed with the last 32 KB of the block before as dictionary) and
+ * concatenated, all but the last block are terminated by a sync flush. When
+ * called by a thread of a {@link java.util.concurrent.ForkJoinPool} the blocks
+ * are compressed by the threads of that pool.
+ * <p>
+ * The blocks only depend on the size of the data, so the result is the same
+ * regardless of how many threads compress it.
+ *
+ * @author Peter Fichtner
+ */
+final class BlockDeflater {
+
+  static final int BLOCK_SIZE = 1 << 20;
+  private static final int DICTIONARY_SIZE = 1 << 15;
+
+  private BlockDeflater() {
+    throw new IllegalStateException();
+  }
+
+  static byte[] deflate(final byte[] data, final int level) {
+    if (data.length <= BLOCK_SIZE) {
+      return deflate(data, 0, data.length, level);
+    }
+    final List<ForkJoinTask<byte[]>> blocks = new ArrayList<>();
+    for (int start = 0; start < data.length; start += BLOCK_SIZE) {
+      final int blockStart = start;
+      blocks.add(ForkJoinTask.adapt(() -> deflate(data, blockStart, Math.min(blockStart + BLOCK_SIZE, data.length),
+          level)));
+    }
+    if (ForkJoinTask.inForkJoinPool()) {
+      ForkJoinTask.invokeAll(blocks);
+    } else {
+      for (final ForkJoinTask<byte[]> block : blocks) {
+        block.invoke();
+      }
+    }
+    final ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 2);
+    for (final ForkJoinTask<byte[]> block : blocks) {
+      result.writeBytes(block.join());
+    }
+    return result.toByteArray();
+  }
+
+  private static byte[] deflate(final byte[] data, final int start, final int end, final int level) {
+    final Deflater deflater = new Deflater(level, true);
+    try {
+      if (start > 0) {
+        final int dictionaryStart = Math.max(0, start - DICTIONARY_SIZE);
+        deflater.setDictionary(data, dictionaryStart, start - dictionaryStart);
+      }
+      deflater.setInput(data, start, end - start);
+      final boolean last = end == data.length;
+      if (last) {
+        deflater.finish();
+      }
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, (end - start) / 2));
+      final byte[] buffer = new byte[8192];
+      if (last) {
+        while (!deflater.finished()) {
+          compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+      } else {
+        int count;
+        do {
+          count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, count);
+        } while (count == buffer.length);
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+}
@@ -1,8 +1,12 @@
 package org.dyndns.fichtner.purgeannotationrefs.optimizer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Optimizer so some black magic on java class files.
@@ -21,4 +25,45 @@ public interface ClassOptimizer {
   void optimize(final InputStream inputStream, final OutputStream outputStream)
       throws IOException;
 
+  /**
+   * Returns an optimized version of the passed class. If the class has not
+   * been modified the passed array itself is returned, so callers can skip
+   * writing it by checking for identity.
+   *
+   * @param classFile the class to optimize
+   * @return the optimized class or <code>classFile</code> if it has not been
+   * modified
+   * @throws IOException IO errors
+   */
+  default byte[] optimize(final byte[] classFile) throws IOException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(classFile.length);
+    optimize(new ByteArrayInputStream(classFile), outputStream);
+    final byte[] result = outputStream.toByteArray();
+    return Arrays.equals(result, classFile) ? classFile : result;
+  }
+
+  /**
+   * Returns an optimized version of the class between the passed buffer's
+   * position and limit. The passed buffer's position is not changed. If the
+   * class has not been modified the passed buffer itself is returned, so
+   * callers can skip writing it by checking for identity.
+   *
+   * @param classFile the class to optimize
+   * @return the optimized class or <code>classFile</code> if it has not been
+   * modified
+   * @throws IOException IO errors
+   */
+  default ByteBuffer optimize(final ByteBuffer classFile) throws IOException {
+    final byte[] bytes;
+    if (classFile.hasArray() && classFile.arrayOffset() == 0 && classFile.position() == 0
+        && classFile.limit() == classFile.array().length) {
+      bytes = classFile.array();
+    } else {
+      bytes = new byte[classFile.remaining()];
+      classFile.duplicate().get(bytes);
+    }
+    final byte[] result = optimize(bytes);
+    return result == bytes ? classFile : ByteBuffer.wrap(result);
+  }
+
 }
@@ -0,0 +1,210 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.GlobMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Decides how the entries of zip files are compressed when written: Rules
+ * map entry names (and sizes) to a compression method and level, the first
+ * rule matching an entry wins. Entries not matched by any rule keep their
+ * compression method. For example
+ * <pre>
+ * new CompressionPolicy()
+ *     .store("**.class")
+ *     .deflate("**", 1024 * 1024, Deflater.BEST_COMPRESSION)
+ * </pre>
+ * stores classes (so class loaders do not have to inflate them) and
+ * compresses resources of 1 MB or more as good as possible.
+ * <p>
+ * Entries are copied as they are (without inflating and deflating them) only
+ * if they are not modified and the policy keeps their compression.
+ *
+ * @author Peter Fichtner
+ */
+public class CompressionPolicy {
+
+  private static final int UNSET = Integer.MIN_VALUE;
+
+  private final List<Rule> rules = new ArrayList<>();
+  private int level = UNSET;
+  private boolean fast;
+
+  /**
+   * Store the entries whose names match the passed glob (<code>*</code>
+   * matches any characters but <code>/</code>, <code>**</code> any
+   * characters and <code>?</code> any single character but <code>/</code>).
+   *
+   * @param glob glob for the entry names
+   * @return this instance
+   */
+  public CompressionPolicy store(final String glob) {
+    return rule(new GlobMatcher(glob, '/'), 0, ZipEntry.STORED, UNSET);
+  }
+
+  /**
+   * Deflate the entries whose names match the passed glob (see
+   * {@link #store(String)}) using the passed level.
+   *
+   * @param glob  glob for the entry names
+   * @param level the compression level (see {@link Deflater})
+   * @return this instance
+   */
+  public CompressionPolicy deflate(final String glob, final int level) {
+    return deflate(glob, 0, level);
+  }
+
+  /**
+   * Deflate the entries whose names match the passed glob (see
+   * {@link #store(String)}) and whose (uncompressed) size is at least the
+   * passed size using the passed level.
+   *
+   * @param glob    glob for the entry names
+   * @param minSize minimum size of the entries
+   * @param level   the compression level (see {@link Deflater})
+   * @return this instance
+   */
+  public CompressionPolicy deflate(final String glob, final long minSize, final int level) {
+    return rule(new GlobMatcher(glob, '/'), minSize, ZipEntry.DEFLATED, checkLevel(level));
+  }
+
+  /**
+   * Add a rule for the entries whose names match the passed predicate and
+   * whose (uncompressed) size is at least the passed size.
+   *
+   * @param names   predicate for the entry names
+   * @param minSize minimum size of the entries
+   * @param method  {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+   * @param level   the compression level (see {@link Deflater}), ignored for
+   *                {@link ZipEntry#STORED}
+   * @return this instance
+   */
+  public CompressionPolicy rule(final Predicate<String> names, final long minSize,
+                                final int method, final int level) {
+    if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+      throw new IllegalArgumentException("unsupported compression method " + method); //$NON-NLS-1$
+    }
+    this.rules.add(new Rule(names, minSize, method, level));
+    return this;
+  }
+
+  /**
+   * Set the compression level of entries deflated and not matched by a rule
+   * with a level of its own. If not set the level of the writer is used.
+   *
+   * @param level the compression level (see {@link Deflater})
+   * @return this instance
+   */
+  public CompressionPolicy setLevel(final int level) {
+    this.level = checkLevel(level);
+    return this;
+  }
+
+  /**
+   * Favor speed over size: Entries deflated are compressed using
+   * {@link Deflater#BEST_SPEED} and entries not modified and deflated already
+   * are never deflated again.
+   *
+   * @param fast <code>true</code> to favor speed
+   * @return this instance
+   */
+  public CompressionPolicy setFast(final boolean fast) {
+    this.fast = fast;
+    return this;
+  }
+
+  /**
+   * Returns <code>true</code> if the policy has neither rules nor levels, so
+   * all entries keep their compression.
+   *
+   * @return <code>true</code> if all entries keep their compression
+   */
+  public boolean isKeepAll() {
+    return this.rules.isEmpty() && this.level == UNSET && !this.fast;
+  }
+
+  /**
+   * Returns the compression method for the passed entry.
+   *
+   * @param name   name of the entry
+   * @param size   (uncompressed) size of the entry
+   * @param method the compression method the entry is stored with
+   * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+   */
+  public int method(final String name, final long size, final int method) {
+    final Rule rule = rule(name, size);
+    return rule == null ? method : rule.method;
+  }
+
+  /**
+   * Returns the compression level for the passed entry.
+   *
+   * @param name         name of the entry
+   * @param size         (uncompressed) size of the entry
+   * @param defaultLevel level to use if neither a rule nor the policy has a
+   *                     level
+   * @return the compression level
+   */
+  public int level(final String name, final long size, final int defaultLevel) {
+    if (this.fast) {
+      return Deflater.BEST_SPEED;
+    }
+    final Rule rule = rule(name, size);
+    if (rule != null && rule.level != UNSET) {
+      return rule.level;
+    }
+    return this.level == UNSET ? defaultLevel : this.level;
+  }
+
+  /**
+   * Returns <code>true</code> if an entry not modified can be copied as it is
+   * stored with the passed method.
+   *
+   * @param name   name of the entry
+   * @param size   (uncompressed) size of the entry
+   * @param method the compression method the entry is stored with
+   * @return <code>true</code> if the entry can be copied as it is
+   */
+  public boolean keeps(final String name, final long size, final int method) {
+    final Rule rule = rule(name, size);
+    return rule == null || rule.method == method && (method == ZipEntry.STORED || this.fast);
+  }
+
+  private Rule rule(final String name, final long size) {
+    for (final Rule rule : this.rules) {
+      if (size >= rule.minSize && rule.names.test(name)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  private static int checkLevel(final int level) {
+    if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+        && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("invalid compression level " + level); //$NON-NLS-1$
+    }
+    return level;
+  }
+
+  private static final class Rule {
+
+    private final Predicate<String> names;
+    private final long minSize;
+    private final int method;
+    private final int level;
+
+    private Rule(final Predicate<String> names, final long minSize, final int method, final int level) {
+      this.names = names;
+      this.minSize = minSize;
+      this.method = method;
+      this.level = level;
+    }
+
+  }
+
+}
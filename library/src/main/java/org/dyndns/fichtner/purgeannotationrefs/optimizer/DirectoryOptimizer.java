@@ -0,0 +1,521 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.dyndns.fichtner.purgeannotationrefs.Util.isClass;
+import static org.dyndns.fichtner.purgeannotationrefs.Util.isZip;
+
+/**
+ * Optimizer to optimize the class files of a directory tree (recursively).
+ * The tree is either optimized in place or written to a target directory
+ * keeping the relative paths of the files, files neither being class files
+ * nor zip files are copied then. Zip files are optimized by a
+ * {@link ZipOptimizer} if one is set, otherwise they are handled like all
+ * other files.
+ * <p>
+ * If more than one thread is configured the files are processed by a pool of
+ * threads, the largest files (or the ones taking longest according to a
+ * {@link TimingProfile}) first. The results are reported in the order of the
+ * relative paths of the files whatever the count of threads. The
+ * {@link ClassOptimizer} (and the {@link ZipOptimizer}) has to be thread-safe
+ * then.
+ * <p>
+ * Class files are only written if their content changes, so files not
+ * affected keep their modification time. Files are written to a temporary
+ * file next to them first which then atomically replaces them, so a file is
+ * never seen half-written (zip files updated in place are the exception, see
+ * {@link ZipOptimizer#optimizeInPlace(Path)}).
+ *
+ * @author Peter Fichtner
+ */
+public class DirectoryOptimizer {
+
+  /**
+   * What has been done with a file.
+   */
+  public enum Action {
+    /**
+     * The file (a class or zip file) has been optimized.
+     */
+    OPTIMIZED,
+    /**
+     * The file (a class or zip file) did not need any change. In place it has
+     * not been written, a class file is copied to a target directory (unless
+     * linked, see {@link #LINKED}).
+     */
+    UNCHANGED,
+    /**
+     * The file has been copied to the target directory as it is.
+     */
+    COPIED,
+    /**
+     * The file did not need any change and has been hard-linked into the
+     * target directory.
+     */
+    LINKED
+  }
+
+  /**
+   * The result of processing a file.
+   *
+   * @author Peter Fichtner
+   */
+  public static final class Result {
+
+    private final Path path;
+    private final Action action;
+
+    private Result(final Path path, final Action action) {
+      this.path = path;
+      this.action = action;
+    }
+
+    /**
+     * Returns the path of the file relative to the directory processed.
+     *
+     * @return the relative path
+     */
+    public Path getPath() {
+      return this.path;
+    }
+
+    public Action getAction() {
+      return this.action;
+    }
+
+    @Override
+    public String toString() {
+      return this.path + ": " + this.action; //$NON-NLS-1$
+    }
+
+  }
+
+  private final ClassOptimizer classOptimizer;
+  private ZipOptimizer zipOptimizer;
+  private boolean compactZips;
+  private boolean link;
+  private int threads = 1;
+  private TimingProfile timingProfile;
+
+  /**
+   * Creates a new DirectoryOptimizer doing delegation calls to the passed
+   * ClassOptimizer.
+   *
+   * @param classOptimizer ClassOptimizer to use
+   */
+  public DirectoryOptimizer(final ClassOptimizer classOptimizer) {
+    this.classOptimizer = classOptimizer;
+  }
+
+  /**
+   * Set the optimizer to optimize the zip files of the tree with.
+   *
+   * @param zipOptimizer the optimizer, <code>null</code> (the default)
+   *                     handles zip files like all other files
+   * @return this instance
+   */
+  public DirectoryOptimizer setZipOptimizer(final ZipOptimizer zipOptimizer) {
+    this.zipOptimizer = zipOptimizer;
+    return this;
+  }
+
+  /**
+   * Compact zip files optimized in place (see
+   * {@link ZipArchiveWriter#compact(Path)}).
+   *
+   * @param compactZips <code>true</code> compacts zip files optimized in place
+   * @return this instance
+   */
+  public DirectoryOptimizer setCompactZips(final boolean compactZips) {
+    this.compactZips = compactZips;
+    return this;
+  }
+
+  /**
+   * Hard-link the files not needing any change into the target directory
+   * instead of copying them (if the target directory differs from the source
+   * directory). If the file system does not support hard links (or the
+   * directories are on different file systems) the files are copied. As the
+   * linked files share their content with the source files, they must not be
+   * modified in place afterwards (this optimizer replaces files instead).
+   *
+   * @param link <code>true</code> hard-links unchanged files
+   * @return this instance
+   */
+  public DirectoryOptimizer setLink(final boolean link) {
+    this.link = link;
+    return this;
+  }
+
+  /**
+   * Set the count of threads processing files concurrently.
+   *
+   * @param threads count of threads, <code>1</code> (the default) processes
+   *                all files on the calling thread
+   * @return this instance
+   */
+  public DirectoryOptimizer setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive but was " + threads); //$NON-NLS-1$
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Set the profile to schedule the files by and to record the processing
+   * times of the class and zip files into (by their relative paths).
+   *
+   * @param timingProfile the profile, <code>null</code> schedules by size
+   *                      and records nothing
+   * @return this instance
+   */
+  public DirectoryOptimizer setTimingProfile(final TimingProfile timingProfile) {
+    this.timingProfile = timingProfile;
+    return this;
+  }
+
+  /**
+   * Optimizes the class files of the passed directory in place.
+   *
+   * @param directory the directory to optimize
+   * @return the results ordered by the relative paths of the files
+   * @throws IOException IO error, the message names the file failed
+   */
+  public List<Result> optimize(final Path directory) throws IOException {
+    return optimize(directory, directory);
+  }
+
+  /**
+   * Optimizes the class files of the passed source directory and writes them
+   * to the passed target directory. If the directories differ, all other
+   * files are copied to the target directory.
+   *
+   * @param source the directory to read from
+   * @param target the directory to write to, may be the same as
+   *               <code>source</code>
+   * @return the results ordered by the relative paths of the files
+   * @throws IOException IO error, the message names the file failed
+   */
+  public List<Result> optimize(final Path source, final Path target) throws IOException {
+    final boolean inPlace = Files.exists(target) && Files.isSameFile(source, target);
+    final Run run = new Run(inPlace, this.link && !inPlace);
+    final List<FileTask> tasks = new ArrayList<>();
+    for (final FileTask task : walk(source)) {
+      if (!inPlace || isOptimized(task.path)) {
+        task.target = target.resolve(task.path.toString());
+        task.index = tasks.size();
+        tasks.add(task);
+      }
+    }
+    if (this.threads == 1 || tasks.size() < 2) {
+      final List<Result> results = new ArrayList<>(tasks.size());
+      for (final FileTask task : tasks) {
+        results.add(process(task, run));
+      }
+      return results;
+    }
+    final ExecutorService pool = new ForkJoinPool(this.threads);
+    try {
+      // largest first, the results are collected in the order of the paths
+      final List<FileTask> bySize = new ArrayList<>(tasks);
+      bySize.sort(Comparator.comparingLong(this::estimate).reversed());
+      final List<Future<Result>> futures = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+      for (final FileTask task : bySize) {
+        futures.set(task.index, pool.submit(() -> process(task, run)));
+      }
+      final List<Result> results = new ArrayList<>(tasks.size());
+      for (final Future<Result> future : futures) {
+        results.add(get(future));
+      }
+      return results;
+    } finally {
+      pool.shutdownNow();
+      awaitTermination(pool);
+    }
+  }
+
+  /**
+   * Waits for the tasks still running after a failure, they may be writing
+   * files which must not happen once optimizing returned.
+   */
+  private static void awaitTermination(final ExecutorService pool) {
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        // keep waiting
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Optimizes a single file like a file of a directory tree: A class file
+   * (or a zip file if a {@link ZipOptimizer} is set) is optimized and written
+   * to the passed target file (in place only if modified), other files are
+   * copied to the target file (and left alone in place). Unchanged files are
+   * hard-linked if configured.
+   *
+   * @param source the file to read from
+   * @param target the file to write to, may be the same as
+   *               <code>source</code>
+   * @return the result, its path is the file name of <code>source</code>
+   * @throws IOException IO error, the message names the file failed
+   */
+  public Result optimizeFile(final Path source, final Path target) throws IOException {
+    final boolean inPlace = Files.exists(target) && Files.isSameFile(source, target);
+    final FileTask task = new FileTask(source, source.getFileName(), Files.size(source));
+    if (inPlace && !isOptimized(task.path)) {
+      return new Result(task.path, Action.UNCHANGED);
+    }
+    task.target = target;
+    return process(task, new Run(inPlace, this.link && !inPlace));
+  }
+
+  private boolean isOptimized(final Path path) {
+    final String name = path.getFileName().toString();
+    return isClass(name) || this.zipOptimizer != null && isZip(name);
+  }
+
+  /**
+   * Returns the regular files of the passed directory ordered by their
+   * relative paths.
+   */
+  private static List<FileTask> walk(final Path directory) throws IOException {
+    final List<FileTask> result = new ArrayList<>();
+    Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+        if (attributes.isRegularFile()) {
+          result.add(new FileTask(file, directory.relativize(file), attributes.size()));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    result.sort(Comparator.comparing(task -> name(task.path)));
+    return result;
+  }
+
+  private long estimate(final FileTask task) {
+    final TimingProfile profile = this.timingProfile;
+    return profile == null ? task.size : profile.estimate(name(task.path), task.size);
+  }
+
+  private static String name(final Path path) {
+    return path.toString().replace('\\', '/');
+  }
+
+  private Result process(final FileTask task, final Run run) throws IOException {
+    final long start = System.nanoTime();
+    final Result result;
+    try {
+      result = isOptimized(task.path) ? optimize(task, run) : copy(task, run);
+    } catch (IOException | RuntimeException e) {
+      throw new IOException("failed to process " + task.source + ": " + e.getMessage(), e); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    final TimingProfile profile = this.timingProfile;
+    if (profile != null && isOptimized(task.path)) {
+      profile.record(name(task.path), task.size, System.nanoTime() - start);
+    }
+    return result;
+  }
+
+  private Result optimize(final FileTask task, final Run run) throws IOException {
+    if (isClass(task.path.getFileName().toString())) {
+      final byte[] bytes = Files.readAllBytes(task.source);
+      final byte[] result = transformClass(task.path, bytes);
+      final boolean modified = result != bytes && !Arrays.equals(result, bytes);
+      if (!modified && run.link && link(task, run)) {
+        return new Result(task.path, Action.LINKED);
+      }
+      if (modified || !run.inPlace) {
+        write(task.target, result, task.source);
+      }
+      return new Result(task.path, modified ? Action.OPTIMIZED : Action.UNCHANGED);
+    } else if (run.inPlace) {
+      if (!this.zipOptimizer.optimizeInPlace(task.source)) {
+        return new Result(task.path, Action.UNCHANGED);
+      }
+      if (this.compactZips) {
+        ZipArchiveWriter.compact(task.source);
+      }
+    } else {
+      Files.createDirectories(task.target.getParent());
+      final Path temp = createTempFile(task.target);
+      try {
+        try (ZipArchive input = ZipArchive.open(task.source);
+             ZipArchiveWriter output = new ZipArchiveWriter(Files.newOutputStream(temp))) {
+          this.zipOptimizer.optimize(input, output);
+        }
+        replace(temp, task.target, task.source);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+    return new Result(task.path, Action.OPTIMIZED);
+  }
+
+  private static Result copy(final FileTask task, final Run run) throws IOException {
+    if (run.link && link(task, run)) {
+      return new Result(task.path, Action.LINKED);
+    }
+    Files.createDirectories(task.target.getParent());
+    final Path temp = createTempFile(task.target);
+    try {
+      Files.copy(task.source, temp, StandardCopyOption.REPLACE_EXISTING);
+      replace(temp, task.target, task.source);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return new Result(task.path, Action.COPIED);
+  }
+
+  /**
+   * Hard-links the source file of the passed task to its target. Returns
+   * <code>false</code> if links are not supported, no further links are tried
+   * in this run then.
+   */
+  private static boolean link(final FileTask task, final Run run) throws IOException {
+    Files.createDirectories(task.target.getParent());
+    if (Files.exists(task.target) && Files.isSameFile(task.source, task.target)) {
+      return true;
+    }
+    final Path temp = createTempFile(task.target);
+    try {
+      Files.delete(temp);
+      Files.createLink(temp, task.source);
+      Files.move(temp, task.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      // e.g. the target directory is on another file system
+      run.link = false;
+      return false;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Writes the passed bytes to the passed file unless the file already has
+   * exactly this content, so neither its modification time changes nor
+   * tools watching it see a change. The bytes are written to a temporary file
+   * first which then replaces the passed file, so the file never is seen
+   * half-written. The file gets the permissions of <code>source</code>.
+   */
+  private static void write(final Path file, final byte[] bytes,
+                            final Path source) throws IOException {
+    if (Files.isRegularFile(file) && Files.size(file) == bytes.length
+        && Arrays.equals(Files.readAllBytes(file), bytes)) {
+      return;
+    }
+    Files.createDirectories(file.getParent());
+    final Path temp = createTempFile(file);
+    try {
+      Files.write(temp, bytes);
+      replace(temp, file, source);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static Path createTempFile(final Path file) throws IOException {
+    return Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp"); //$NON-NLS-1$
+  }
+
+  /**
+   * Atomically replaces <code>file</code> by <code>temp</code>. Temporary
+   * files are created accessible by their owner only, so <code>temp</code>
+   * gets the POSIX permissions of <code>source</code> (if the file system
+   * supports them) first.
+   *
+   * @param temp   the temporary file to move
+   * @param file   the file to replace
+   * @param source the file to take the permissions from
+   * @throws IOException IO error
+   */
+  static void replace(final Path temp, final Path file, final Path source) throws IOException {
+    final PosixFileAttributeView view = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+    if (view != null) {
+      view.setPermissions(Files.getPosixFilePermissions(source));
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Optimize the passed class. When optimizing concurrently this method is
+   * called by the threads of the pool.
+   *
+   * @param path  of the class relative to the directory processed
+   * @param bytes the class file
+   * @return the optimized class file
+   * @throws IOException IO error
+   */
+  protected byte[] transformClass(final Path path, final byte[] bytes) throws IOException {
+    return this.classOptimizer.optimize(bytes);
+  }
+
+  private static Result get(final Future<Result> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while optimizing"); //$NON-NLS-1$
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static final class Run {
+
+    private final boolean inPlace;
+    private volatile boolean link;
+
+    private Run(final boolean inPlace, final boolean link) {
+      this.inPlace = inPlace;
+      this.link = link;
+    }
+
+  }
+
+  private static final class FileTask {
+
+    private final Path source;
+    private final Path path;
+    private final long size;
+    private Path target;
+    private int index;
+
+    private FileTask(final Path source, final Path path, final long size) {
+      this.source = source;
+      this.path = path;
+      this.size = size;
+    }
+
+  }
+
+}
@@ -0,0 +1,76 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * The data of a zip entry ready to be written: compressed (or stored) with
+ * CRC and size of the uncompressed data. Compressing is independent of the
+ * {@link ZipArchiveWriter}, so entries can be compressed by any thread and
+ * written in order afterwards.
+ *
+ * @author Peter Fichtner
+ */
+public final class EntryData {
+
+  private final int method;
+  private final long crc;
+  private final long size;
+  private final byte[] data;
+
+  private EntryData(final int method, final long crc, final long size, final byte[] data) {
+    this.method = method;
+    this.crc = crc;
+    this.size = size;
+    this.data = data;
+  }
+
+  /**
+   * Compresses the passed data using the passed method. Large data is split
+   * into blocks compressed concurrently if called by a thread of a
+   * {@link java.util.concurrent.ForkJoinPool}.
+   *
+   * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+   * @param data   the uncompressed data
+   * @param level  the compression level (see {@link java.util.zip.Deflater})
+   * @return the compressed data
+   */
+  public static EntryData compress(final int method, final byte[] data, final int level) {
+    final CRC32 crc = new CRC32();
+    crc.update(data);
+    return method == ZipEntry.STORED
+        ? new EntryData(ZipEntry.STORED, crc.getValue(), data.length, data)
+        : new EntryData(ZipEntry.DEFLATED, crc.getValue(), data.length, BlockDeflater.deflate(data, level));
+  }
+
+  public int getMethod() {
+    return this.method;
+  }
+
+  public long getCrc() {
+    return this.crc;
+  }
+
+  /**
+   * Returns the size of the uncompressed data.
+   *
+   * @return the size of the uncompressed data
+   */
+  public long getSize() {
+    return this.size;
+  }
+
+  /**
+   * Returns the size of the compressed data.
+   *
+   * @return the size of the compressed data
+   */
+  public long getCompressedSize() {
+    return this.data.length;
+  }
+
+  byte[] data() {
+    return this.data;
+  }
+
+}
@@ -0,0 +1,88 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Set of the names of the entries written to a zip stream, so duplicate
+ * entries can be dropped before anything of them is read or written. Like
+ * the table of {@link ZipArchive} it is an open addressing hash table, it
+ * holds the hash codes of the names and the names encoded as UTF-8 in
+ * arrays, the names themselves are compared only if their hash codes
+ * collide.
+ *
+ * @author Peter Fichtner
+ */
+final class NameSet {
+
+  /**
+   * Open addressing hash table of the hash codes of the names (upper half)
+   * and their indexes plus one (lower half, <code>0</code> marks free slots).
+   */
+  private long[] table = new long[64];
+  /**
+   * Offsets of the names in {@link #bytes}, the name of index
+   * <code>i</code> ends where the one of index <code>i + 1</code> starts.
+   */
+  private int[] offsets = new int[33];
+  private byte[] bytes = new byte[1024];
+  private int size;
+
+  /**
+   * Adds the passed name.
+   *
+   * @param name the name to add
+   * @return <code>false</code> if the name has been added before
+   */
+  boolean add(final String name) {
+    final byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+    int hash = name.hashCode();
+    hash ^= hash >>> 16;
+    final int mask = this.table.length - 1;
+    int slot = hash & mask;
+    for (long value; (value = this.table[slot]) != 0; slot = slot + 1 & mask) {
+      if ((int) (value >>> 32) == hash && equals((int) value - 1, encoded)) {
+        return false;
+      }
+    }
+    this.table[slot] = (long) hash << 32 | this.size + 1;
+    append(encoded);
+    if (this.size * 2 > this.table.length) {
+      rehash(this.table.length * 2);
+    }
+    return true;
+  }
+
+  private boolean equals(final int index, final byte[] encoded) {
+    final int offset = this.offsets[index];
+    return Arrays.equals(this.bytes, offset, this.offsets[index + 1], encoded, 0, encoded.length);
+  }
+
+  private void append(final byte[] encoded) {
+    final int offset = this.offsets[this.size];
+    if (this.size + 2 > this.offsets.length) {
+      this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+    }
+    if (offset + encoded.length > this.bytes.length) {
+      this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, offset + encoded.length));
+    }
+    System.arraycopy(encoded, 0, this.bytes, offset, encoded.length);
+    this.offsets[++this.size] = offset + encoded.length;
+  }
+
+  private void rehash(final int length) {
+    final long[] table = new long[length];
+    final int mask = length - 1;
+    for (final long value : this.table) {
+      if (value != 0) {
+        int slot = (int) (value >>> 32) & mask;
+        while (table[slot] != 0) {
+          slot = slot + 1 & mask;
+        }
+        table[slot] = value;
+      }
+    }
+    this.table = table;
+  }
+
+}
@@ -0,0 +1,264 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pipeline of three stages: A reader thread produces entries, the threads of
+ * a pool transform them and the thread running the pipeline writes the
+ * results in the order the entries have been produced.
+ * <p>
+ * The stages are connected by a bounded queue, additionally the bytes of
+ * the entries in flight (read but not yet written) are limited: The reader
+ * blocks until enough entries have been written. An entry larger than the
+ * budget waits for all entries before it to be written, so it never
+ * deadlocks.
+ * <p>
+ * Entries known to take long can be started ahead of their turn (see
+ * {@link #prefetch(long, Callable)}), so they do not keep the other threads
+ * waiting at the end. Prefetched entries may hold up to half of the budget,
+ * the other half is left to the entries passed in order.
+ *
+ * @param <E> type of the entries
+ * @param <D> type of the transformed data
+ * @author Peter Fichtner
+ */
+final class Pipeline<E, D> {
+
+  /**
+   * The reader stage.
+   */
+  interface Reader<E, D> {
+
+    /**
+     * Reads all entries and passes them to the pipeline.
+     *
+     * @param pipeline the pipeline to pass the entries to
+     * @throws IOException          IO error
+     * @throws InterruptedException if writing failed
+     */
+    void read(Pipeline<E, D> pipeline) throws IOException, InterruptedException;
+
+  }
+
+  /**
+   * The writer stage.
+   */
+  interface Writer<E, D> {
+
+    void write(E entry, D data) throws IOException;
+
+  }
+
+  private final ExecutorService pool;
+  private final BlockingQueue<Item<E, D>> queue;
+  private final Semaphore budget;
+  private final int maxBytes;
+  private final int maxPrefetchBytes;
+  private int prefetchBytes;
+  private final Item<E, D> end = new Item<>(null, 0, null);
+  private volatile Throwable failure;
+
+  /**
+   * Creates a new pipeline.
+   *
+   * @param pool       pool transforming the entries
+   * @param maxEntries maximum count of entries in flight
+   * @param maxBytes   maximum count of bytes in flight
+   */
+  Pipeline(final ExecutorService pool, final int maxEntries, final long maxBytes) {
+    this.pool = pool;
+    this.queue = new ArrayBlockingQueue<>(maxEntries);
+    final int budget = (int) Math.min(maxBytes, Integer.MAX_VALUE);
+    this.maxPrefetchBytes = budget / 2;
+    // entries passed in order must fit into what prefetched entries leave
+    this.maxBytes = budget - this.maxPrefetchBytes;
+    this.budget = new Semaphore(budget);
+  }
+
+  /**
+   * Starts to transform an entry ahead of its turn if it fits into the part
+   * of the budget left for prefetching. The entry has to be passed in order
+   * later using {@link #transform(Object, Prefetched)}. Must be called by the
+   * reader thread.
+   *
+   * @param bytes bytes held in memory for the entry
+   * @param task  the transformation
+   * @return the started transformation or <code>null</code> if it does not
+   * fit into the budget
+   */
+  Prefetched<D> prefetch(final long bytes, final Callable<D> task) {
+    if (bytes > this.maxPrefetchBytes - this.prefetchBytes || !this.budget.tryAcquire((int) bytes)) {
+      return null;
+    }
+    this.prefetchBytes += (int) bytes;
+    return new Prefetched<>((int) bytes, this.pool.submit(task));
+  }
+
+  /**
+   * Passes an entry whose transformation has been started ahead of its turn.
+   *
+   * @param entry      the entry
+   * @param prefetched the started transformation
+   * @throws InterruptedException if writing failed
+   */
+  void transform(final E entry, final Prefetched<D> prefetched) throws InterruptedException {
+    this.queue.put(new Item<>(entry, prefetched.cost, prefetched.data));
+  }
+
+  /**
+   * Passes an entry to be transformed by the pool. Blocks until the entry
+   * fits into the budget.
+   *
+   * @param entry the entry
+   * @param bytes bytes held in memory for the entry
+   * @param task  the transformation
+   * @throws InterruptedException if writing failed
+   */
+  void transform(final E entry, final long bytes, final Callable<D> task) throws InterruptedException {
+    final int cost = acquire(bytes);
+    this.queue.put(new Item<>(entry, cost, this.pool.submit(task)));
+  }
+
+  /**
+   * Passes an entry not to be transformed. Blocks until the entry fits into
+   * the budget.
+   *
+   * @param entry the entry
+   * @param bytes bytes held in memory for the entry
+   * @param data  the data to write
+   * @throws InterruptedException if writing failed
+   */
+  void pass(final E entry, final long bytes, final D data) throws InterruptedException {
+    final int cost = acquire(bytes);
+    this.queue.put(new Item<>(entry, cost, CompletableFuture.completedFuture(data)));
+  }
+
+  private int acquire(final long bytes) throws InterruptedException {
+    final int cost = (int) Math.min(bytes, this.maxBytes);
+    this.budget.acquire(cost);
+    return cost;
+  }
+
+  /**
+   * Runs the pipeline: The reader is run by a thread of its own, the writer
+   * by the calling thread.
+   *
+   * @param reader the reader stage
+   * @param writer the writer stage
+   * @throws IOException IO error of any stage
+   */
+  void run(final Reader<E, D> reader, final Writer<E, D> writer) throws IOException {
+    final Thread thread = new Thread(() -> {
+      try {
+        reader.read(this);
+      } catch (InterruptedException e) {
+        // writing failed
+        return;
+      } catch (Throwable t) {
+        this.failure = t;
+      }
+      try {
+        this.queue.put(this.end);
+      } catch (InterruptedException e) {
+        // writing failed
+      }
+    }, "purgeannotationrefs-reader"); //$NON-NLS-1$
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      Item<E, D> item;
+      while ((item = take()) != this.end) {
+        writer.write(item.entry, get(item.data));
+        this.budget.release(item.cost);
+      }
+      join(thread);
+      rethrow(this.failure);
+    } finally {
+      if (thread.isAlive()) {
+        thread.interrupt();
+      }
+    }
+  }
+
+  private Item<E, D> take() throws InterruptedIOException {
+    try {
+      return this.queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while writing"); //$NON-NLS-1$
+    }
+  }
+
+  private static void join(final Thread thread) throws InterruptedIOException {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while reading"); //$NON-NLS-1$
+    }
+  }
+
+  private static <D> D get(final Future<D> data) throws IOException {
+    try {
+      return data.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while transforming"); //$NON-NLS-1$
+    } catch (ExecutionException e) {
+      rethrow(e.getCause());
+      return null;
+    }
+  }
+
+  private static void rethrow(final Throwable throwable) throws IOException {
+    if (throwable == null) {
+      return;
+    } else if (throwable instanceof IOException) {
+      throw (IOException) throwable;
+    } else if (throwable instanceof RuntimeException) {
+      throw (RuntimeException) throwable;
+    } else if (throwable instanceof Error) {
+      throw (Error) throwable;
+    }
+    throw new IOException(throwable);
+  }
+
+  /**
+   * A transformation started ahead of its turn.
+   */
+  static final class Prefetched<D> {
+
+    private final int cost;
+    private final Future<D> data;
+
+    private Prefetched(final int cost, final Future<D> data) {
+      this.cost = cost;
+      this.data = data;
+    }
+
+  }
+
+  private static final class Item<E, D> {
+
+    private final E entry;
+    private final int cost;
+    private final Future<D> data;
+
+    private Item(final E entry, final int cost, final Future<D> data) {
+      this.entry = entry;
+      this.cost = cost;
+      this.data = data;
+    }
+
+  }
+
+}
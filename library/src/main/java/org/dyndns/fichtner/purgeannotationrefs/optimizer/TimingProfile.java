@@ -0,0 +1,134 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processing times of entries (classes and nested zip files) by their names.
+ * The times recorded by one run can be saved and loaded to schedule the next
+ * run: Entries taking longest are started first so they do not keep the
+ * other threads waiting at the end. Entries without recorded times are
+ * estimated by their size.
+ * <p>
+ * Profiles are thread-safe.
+ *
+ * @author Peter Fichtner
+ */
+public class TimingProfile {
+
+  private static final char SEPARATOR = '\t';
+
+  private final Map<String, Timing> timings = new ConcurrentHashMap<>();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAdder totalBytes = new LongAdder();
+
+  /**
+   * Loads a profile saved by {@link #save(Path)}. A missing file results in
+   * an empty profile.
+   *
+   * @param file the file to load from
+   * @return the profile
+   * @throws IOException IO error or invalid file
+   */
+  public static TimingProfile load(final Path file) throws IOException {
+    final TimingProfile result = new TimingProfile();
+    if (!Files.exists(file)) {
+      return result;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] columns = line.split(String.valueOf(SEPARATOR), 3);
+        if (columns.length != 3) {
+          throw new IOException("invalid line in " + file + ": " + line); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        try {
+          result.record(columns[2], Long.parseLong(columns[1]), Long.parseLong(columns[0]));
+        } catch (NumberFormatException e) {
+          throw new IOException("invalid line in " + file + ": " + line, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Saves the profile, one entry per line (nanoseconds, size and name
+   * separated by tabs) sorted by name.
+   *
+   * @param file the file to save to
+   * @throws IOException IO error
+   */
+  public void save(final Path file) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for (final Map.Entry<String, Timing> entry : new TreeMap<>(this.timings).entrySet()) {
+        writer.write(String.valueOf(entry.getValue().nanos) + SEPARATOR + entry.getValue().size
+            + SEPARATOR + entry.getKey());
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * Records the processing time of the passed entry, replacing the one
+   * recorded before.
+   *
+   * @param name  name of the entry
+   * @param size  size of the entry
+   * @param nanos processing time in nanoseconds
+   */
+  public void record(final String name, final long size, final long nanos) {
+    final Timing previous = this.timings.put(name, new Timing(nanos, size));
+    this.totalNanos.add(previous == null ? nanos : nanos - previous.nanos);
+    this.totalBytes.add(previous == null ? size : size - previous.size);
+  }
+
+  /**
+   * Returns the expected processing time of the passed entry: the recorded
+   * one or, if there is none, the size of the entry multiplied by the
+   * average time per byte of all entries recorded. The result is only
+   * comparable with the results for other entries of this profile.
+   *
+   * @param name name of the entry
+   * @param size size of the entry
+   * @return the expected processing time
+   */
+  public long estimate(final String name, final long size) {
+    final Timing recorded = this.timings.get(name);
+    if (recorded != null) {
+      return recorded.nanos;
+    }
+    final long bytes = this.totalBytes.sum();
+    return bytes <= 0 ? size : (long) (size * ((double) this.totalNanos.sum() / bytes));
+  }
+
+  /**
+   * Returns the count of entries recorded.
+   *
+   * @return the count of entries recorded
+   */
+  public int size() {
+    return this.timings.size();
+  }
+
+  private static final class Timing {
+
+    private final long nanos;
+    private final long size;
+
+    private Timing(final long nanos, final long size) {
+      this.nanos = nanos;
+      this.size = size;
+    }
+
+  }
+
+}
@@ -0,0 +1,627 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to the entries of a zip file: The central directory is read
+ * once when opening the archive, so names, compression methods, CRCs and
+ * sizes of all entries are known before any data is read. Files are memory
+ * mapped, files larger than 2 GB are mapped in windows which are kept and
+ * reused for all reads falling into them. Zip64
+ * archives (more than 65535 entries, entries or archives of 4 GB or more) are
+ * supported, so are archives with data in front of them (like launcher
+ * scripts or self-extracting stubs, see {@link #prefix()}).
+ * <p>
+ * Archives are safe to be read by any number of threads concurrently.
+ *
+ * @author Peter Fichtner
+ */
+public final class ZipArchive implements Closeable {
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+  private static final int ZIP64_LOCATOR = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  static final int ZIP64_EXTRA = 0x0001;
+  static final int MAX_U2 = 0xFFFF;
+  static final long MAX_U4 = 0xFFFFFFFFL;
+  /**
+   * Windows of files too large to be mapped at once start at multiples of
+   * this size and span twice of it, so every region up to this size falls
+   * into one window.
+   */
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final ByteBuffer whole;
+  private final AtomicReferenceArray<ByteBuffer> windows;
+  private final long size;
+  /**
+   * Offset in the file the offsets of the central directory are relative to:
+   * The length of the data in front of the zip file unless the offsets
+   * include it.
+   */
+  private final long base;
+  private final long directoryOffset;
+  private final List<Entry> entries;
+  /**
+   * Open addressing hash table of the indexes of the entries (plus one,
+   * <code>0</code> marks free slots) by their names, holding the first entry
+   * of each name only.
+   */
+  private final int[] byName;
+
+  private ZipArchive(final FileChannel channel, final ByteBuffer whole, final long size) throws IOException {
+    this.channel = channel;
+    this.whole = whole;
+    this.windows = whole == null ? new AtomicReferenceArray<>((int) (size / WINDOW_SIZE) + 1) : null;
+    this.size = size;
+    final long[] directory = findCentralDirectory();
+    this.base = directory[0];
+    this.directoryOffset = directory[1];
+    this.entries = Collections.unmodifiableList(readCentralDirectory(directory[1], directory[2], directory[3]));
+    this.byName = new int[Integer.highestOneBit(Math.max(this.entries.size(), 1) * 2 - 1) * 2];
+    for (int i = 0; i < this.entries.size(); i++) {
+      final int slot = slot(this.entries.get(i).getName());
+      if (this.byName[slot] == 0) {
+        this.byName[slot] = i + 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the slot of the passed name: the one holding the entry of that
+   * name or the free one to put it into.
+   */
+  private int slot(final String name) {
+    final int mask = this.byName.length - 1;
+    int hash = name.hashCode();
+    hash ^= hash >>> 16;
+    for (int slot = hash & mask; ; slot = slot + 1 & mask) {
+      final int index = this.byName[slot];
+      if (index == 0 || this.entries.get(index - 1).getName().equals(name)) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Opens the passed zip file.
+   *
+   * @param path the zip file to open
+   * @return the opened archive
+   * @throws IOException IO error or the file is not a zip file
+   */
+  public static ZipArchive open(final Path path) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      final long size = channel.size();
+      return new ZipArchive(channel, size <= Integer.MAX_VALUE
+          ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null, size);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the zip file held by the passed buffer (from its position to its
+   * limit). The buffer must not be modified while the archive is in use.
+   *
+   * @param buffer buffer holding the zip file
+   * @return the archive
+   * @throws IOException the buffer does not hold a zip file
+   */
+  public static ZipArchive wrap(final ByteBuffer buffer) throws IOException {
+    final ByteBuffer whole = buffer.slice();
+    return new ZipArchive(null, whole, whole.remaining());
+  }
+
+  /**
+   * Returns the entries in the order of the central directory.
+   *
+   * @return the (unmodifiable) entries
+   */
+  public List<Entry> entries() {
+    return this.entries;
+  }
+
+  /**
+   * Returns the (first) entry with the passed name.
+   *
+   * @param name name of the entry
+   * @return the entry or <code>null</code> if there is no such entry
+   */
+  public Entry getEntry(final String name) {
+    final int index = this.byName[slot(name)];
+    return index == 0 ? null : this.entries.get(index - 1);
+  }
+
+  /**
+   * Returns <code>true</code> if the passed entry is the first entry of its
+   * name, so later entries of the same name can be dropped as duplicates.
+   *
+   * @param entry an entry of this archive
+   * @return <code>true</code> if there is no entry of the same name before
+   */
+  public boolean isFirst(final Entry entry) {
+    return getEntry(entry.getName()) == entry;
+  }
+
+  /**
+   * Returns the data in front of the first entry, like a launcher script of
+   * an executable jar file or the stub of a self-extracting archive.
+   *
+   * @return read-only buffer holding the data, empty if there is none
+   * @throws IOException IO error
+   */
+  public ByteBuffer prefix() throws IOException {
+    long first = this.entries.isEmpty() ? this.directoryOffset : Long.MAX_VALUE;
+    for (final Entry entry : this.entries) {
+      first = Math.min(first, entry.localHeaderOffset);
+    }
+    return map(0, this.base + first);
+  }
+
+  /**
+   * Returns the offset in the file the offsets of the entries are relative
+   * to (see {@link Entry#getLocalHeaderOffset()}).
+   */
+  long base() {
+    return this.base;
+  }
+
+  /**
+   * Returns the data of the passed entry as stored in the archive (the
+   * compressed data for deflated entries).
+   *
+   * @param entry an entry of this archive
+   * @return read-only buffer holding the data
+   * @throws IOException IO error
+   */
+  public ByteBuffer rawData(final Entry entry) throws IOException {
+    return map(dataOffset(entry), entry.getCompressedSize());
+  }
+
+  /**
+   * Returns the uncompressed data of the passed entry. The CRC of the data is
+   * verified.
+   *
+   * @param entry an entry of this archive
+   * @return the uncompressed data
+   * @throws IOException IO error or the entry is corrupt
+   */
+  public byte[] data(final Entry entry) throws IOException {
+    final ByteBuffer raw = rawData(entry);
+    final byte[] data = new byte[toInt(entry.getSize(), entry)];
+    if (entry.getMethod() == ZipEntry.STORED) {
+      raw.get(data);
+    } else if (entry.getMethod() == ZipEntry.DEFLATED) {
+      inflate(raw, data, entry);
+    } else {
+      throw new ZipException("unsupported compression method " + entry.getMethod() //$NON-NLS-1$
+          + " of " + entry.getName()); //$NON-NLS-1$
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(data);
+    if (crc.getValue() != entry.getCrc()) {
+      throw new ZipException("invalid CRC of " + entry.getName()); //$NON-NLS-1$
+    }
+    return data;
+  }
+
+  /**
+   * Returns a {@link ZipEntry} for the passed entry carrying the same
+   * attributes as the ones read by {@link java.util.zip.ZipInputStream}.
+   *
+   * @param entry an entry of this archive
+   * @return the {@link ZipEntry}
+   * @throws IOException IO error
+   */
+  public ZipEntry toZipEntry(final Entry entry) throws IOException {
+    final ZipEntry result = new ZipEntry(entry.getName());
+    result.setTime(entry.getTime());
+    final byte[] extra = localExtra(entry);
+    if (extra.length > 0) {
+      result.setExtra(extra);
+    }
+    result.setMethod(entry.getMethod());
+    result.setComment(entry.getComment());
+    result.setCrc(entry.getCrc());
+    result.setSize(entry.getSize());
+    result.setCompressedSize(entry.getCompressedSize());
+    return result;
+  }
+
+  /**
+   * Returns the extra field of the local header of the passed entry (which
+   * may differ from the one of the central directory).
+   *
+   * @param entry an entry of this archive
+   * @return the extra field, empty if there is none
+   * @throws IOException IO error
+   */
+  public byte[] localExtra(final Entry entry) throws IOException {
+    final ByteBuffer header = localHeader(entry);
+    final byte[] extra = new byte[u2(header, 28)];
+    map(this.base + entry.localHeaderOffset + LOCAL_HEADER_SIZE + u2(header, 26), extra.length).get(extra);
+    return extra;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.channel != null) {
+      this.channel.close();
+    }
+  }
+
+  /**
+   * Returns the base offset (see {@link #base}), offset, size and count of
+   * entries of the central directory.
+   */
+  private long[] findCentralDirectory() throws IOException {
+    final int tailSize = (int) Math.min(this.size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    final long tailOffset = this.size - tailSize;
+    final ByteBuffer tail = map(tailOffset, tailSize);
+    int end = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+    while (end >= 0 && tail.getInt(end) != END_OF_CENTRAL_DIRECTORY) {
+      end--;
+    }
+    if (end < 0) {
+      throw new ZipException("end of central directory not found"); //$NON-NLS-1$
+    }
+    long count = u2(tail, end + 10);
+    long directorySize = u4(tail, end + 12);
+    long directoryOffset = u4(tail, end + 16);
+    long directoryEnd = tailOffset + end;
+    final long locatorOffset = directoryEnd - ZIP64_LOCATOR_SIZE;
+    if ((count == MAX_U2 || directorySize == MAX_U4 || directoryOffset == MAX_U4) && locatorOffset >= 0
+        && map(locatorOffset, 4).getInt(0) == ZIP64_LOCATOR) {
+      long recordOffset = map(locatorOffset, ZIP64_LOCATOR_SIZE).getLong(8);
+      if (!isZip64EndOfCentralDirectory(recordOffset)) {
+        // the offset does not include data in front of the zip file, the record precedes the locator
+        recordOffset = locatorOffset - ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE;
+        if (!isZip64EndOfCentralDirectory(recordOffset)) {
+          throw new ZipException("invalid Zip64 end of central directory"); //$NON-NLS-1$
+        }
+      }
+      final ByteBuffer record = map(recordOffset, ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+      count = record.getLong(32);
+      directorySize = record.getLong(40);
+      directoryOffset = record.getLong(48);
+      directoryEnd = recordOffset;
+    }
+    // like java.util.zip the difference to the offset found is the length of data in front of the zip file
+    final long base = directoryEnd - directorySize - directoryOffset;
+    if (directoryOffset < 0 || directorySize < 0 || base < 0 || count > directorySize / CENTRAL_HEADER_SIZE) {
+      throw new ZipException("invalid central directory"); //$NON-NLS-1$
+    }
+    return new long[]{base, directoryOffset, directorySize, count};
+  }
+
+  private boolean isZip64EndOfCentralDirectory(final long offset) throws IOException {
+    return offset >= 0 && offset + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE <= this.size
+        && map(offset, 4).getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY;
+  }
+
+  private List<Entry> readCentralDirectory(final long directoryOffset, final long directorySize,
+                                           final long count) throws IOException {
+    final ByteBuffer directory = map(this.base + directoryOffset, directorySize);
+    final List<Entry> entries = new ArrayList<>((int) count);
+    int offset = 0;
+    for (long i = 0; i < count; i++) {
+      if (offset + CENTRAL_HEADER_SIZE > directory.limit() || directory.getInt(offset) != CENTRAL_HEADER) {
+        throw new ZipException("invalid central directory header"); //$NON-NLS-1$
+      }
+      final int nameLength = u2(directory, offset + 28);
+      final int extraLength = u2(directory, offset + 30);
+      final int commentLength = u2(directory, offset + 32);
+      final int next = offset + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+      if (next > directory.limit()) {
+        throw new ZipException("invalid central directory header"); //$NON-NLS-1$
+      }
+      entries.add(new Entry(directory, offset));
+      offset = next;
+    }
+    return entries;
+  }
+
+  private ByteBuffer localHeader(final Entry entry) throws IOException {
+    final ByteBuffer header = map(this.base + entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER) {
+      throw new ZipException("invalid local header of " + entry.getName()); //$NON-NLS-1$
+    }
+    return header;
+  }
+
+  private long dataOffset(final Entry entry) throws IOException {
+    final ByteBuffer header = localHeader(entry);
+    return this.base + entry.localHeaderOffset + LOCAL_HEADER_SIZE + u2(header, 26) + u2(header, 28);
+  }
+
+  private ByteBuffer map(final long offset, final long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > this.size) {
+      throw new ZipException("invalid offset " + offset); //$NON-NLS-1$
+    }
+    final int intLength = toInt(length, null);
+    final ByteBuffer buffer;
+    if (this.whole != null) {
+      buffer = this.whole.slice((int) offset, intLength);
+    } else if (intLength <= WINDOW_SIZE) {
+      final int index = (int) (offset / WINDOW_SIZE);
+      buffer = window(index).slice((int) (offset - (long) index * WINDOW_SIZE), intLength);
+    } else {
+      // regions larger than a window (the data of large entries) are mapped on their own
+      buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, intLength);
+    }
+    return buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private ByteBuffer window(final int index) throws IOException {
+    final ByteBuffer window = this.windows.get(index);
+    if (window != null) {
+      return window;
+    }
+    final long start = (long) index * WINDOW_SIZE;
+    final ByteBuffer mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+        Math.min(2L * WINDOW_SIZE, this.size - start));
+    // threads racing for the same window use the one mapped first
+    return this.windows.compareAndSet(index, null, mapped) ? mapped : this.windows.get(index);
+  }
+
+  private static void inflate(final ByteBuffer raw, final byte[] data, final Entry entry) throws ZipException {
+    final Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(raw);
+      int offset = 0;
+      while (offset < data.length) {
+        final int count = inflater.inflate(data, offset, data.length - offset);
+        if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        offset += count;
+      }
+      if (offset != data.length) {
+        throw new ZipException("invalid size of " + entry.getName()); //$NON-NLS-1$
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException("invalid data of " + entry.getName() + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static int toInt(final long value, final Entry entry) throws ZipException {
+    if (value > Integer.MAX_VALUE) {
+      throw new ZipException((entry == null ? "region" : entry.getName()) //$NON-NLS-1$
+          + " exceeds 2 GB"); //$NON-NLS-1$
+    }
+    return (int) value;
+  }
+
+  private static String string(final ByteBuffer buffer, final int offset, final int length) {
+    final byte[] bytes = new byte[length];
+    buffer.duplicate().position(offset).get(bytes);
+    // like ZipInputStream names are read as UTF-8 whether flagged or not
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the data of the Zip64 extra field of the passed extra fields or
+   * <code>null</code> if there is none.
+   */
+  static ByteBuffer zip64Extra(final byte[] extra) {
+    final ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    for (int offset = 0; offset + 4 <= extra.length; offset += 4 + u2(buffer, offset + 2)) {
+      final int length = Math.min(u2(buffer, offset + 2), extra.length - offset - 4);
+      if (u2(buffer, offset) == ZIP64_EXTRA) {
+        return buffer.position(offset + 4).limit(offset + 4 + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+    return null;
+  }
+
+  private static int u2(final ByteBuffer buffer, final int offset) {
+    return buffer.getShort(offset) & 0xFFFF;
+  }
+
+  private static long u4(final ByteBuffer buffer, final int offset) {
+    return buffer.getInt(offset) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * An entry of a {@link ZipArchive} as described by the central directory.
+   *
+   * @author Peter Fichtner
+   */
+  public static final class Entry {
+
+    private final String name;
+    private final int versionMadeBy;
+    private final int versionNeeded;
+    private final int flags;
+    private final int method;
+    private final long dosTime;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final byte[] extra;
+    private final String comment;
+    private final int internalAttributes;
+    private final long externalAttributes;
+    private final long localHeaderOffset;
+
+    private Entry(final ByteBuffer directory, final int offset) {
+      final int nameLength = u2(directory, offset + 28);
+      final int extraLength = u2(directory, offset + 30);
+      final int commentLength = u2(directory, offset + 32);
+      this.name = string(directory, offset + CENTRAL_HEADER_SIZE, nameLength);
+      this.versionMadeBy = u2(directory, offset + 4);
+      this.versionNeeded = u2(directory, offset + 6);
+      this.flags = u2(directory, offset + 8);
+      this.method = u2(directory, offset + 10);
+      this.dosTime = u4(directory, offset + 12);
+      this.crc = u4(directory, offset + 16);
+      this.extra = new byte[extraLength];
+      directory.duplicate().position(offset + CENTRAL_HEADER_SIZE + nameLength).get(this.extra);
+      // values not fitting into the header are stored in the Zip64 extra field
+      final ByteBuffer zip64 = zip64Extra(this.extra);
+      this.size = zip64Value(zip64, u4(directory, offset + 24));
+      this.compressedSize = zip64Value(zip64, u4(directory, offset + 20));
+      this.comment = commentLength == 0 ? null
+          : string(directory, offset + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength);
+      this.internalAttributes = u2(directory, offset + 36);
+      this.externalAttributes = u4(directory, offset + 38);
+      this.localHeaderOffset = zip64Value(zip64, u4(directory, offset + 42));
+    }
+
+    private static long zip64Value(final ByteBuffer zip64, final long value) {
+      return value == MAX_U4 && zip64 != null && zip64.remaining() >= 8 ? zip64.getLong() : value;
+    }
+
+    public String getName() {
+      return this.name;
+    }
+
+    public boolean isDirectory() {
+      return this.name.endsWith("/"); //$NON-NLS-1$
+    }
+
+    public int getVersionMadeBy() {
+      return this.versionMadeBy;
+    }
+
+    public int getVersionNeeded() {
+      return this.versionNeeded;
+    }
+
+    /**
+     * Returns the general purpose bit flags.
+     *
+     * @return the general purpose bit flags
+     */
+    public int getFlags() {
+      return this.flags;
+    }
+
+    /**
+     * Returns the compression method.
+     *
+     * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} (or any
+     * other method not supported)
+     */
+    public int getMethod() {
+      return this.method;
+    }
+
+    /**
+     * Returns the modification time in MS-DOS format.
+     *
+     * @return the modification time in MS-DOS format
+     */
+    public long getDosTime() {
+      return this.dosTime;
+    }
+
+    /**
+     * Returns the modification time (in the default time zone like
+     * {@link ZipEntry#getTime()}).
+     *
+     * @return the modification time in milliseconds since the epoch
+     */
+    public long getTime() {
+      LocalDateTime time;
+      try {
+        time = LocalDateTime.of((int) ((this.dosTime >> 25) & 0x7F) + 1980, (int) ((this.dosTime >> 21) & 0x0F),
+            (int) ((this.dosTime >> 16) & 0x1F), (int) ((this.dosTime >> 11) & 0x1F),
+            (int) ((this.dosTime >> 5) & 0x3F), (int) ((this.dosTime << 1) & 0x3E));
+      } catch (DateTimeException e) {
+        time = LocalDateTime.of(1980, 1, 1, 0, 0);
+      }
+      return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public long getCrc() {
+      return this.crc;
+    }
+
+    public long getCompressedSize() {
+      return this.compressedSize;
+    }
+
+    public long getSize() {
+      return this.size;
+    }
+
+    /**
+     * Returns the extra field of the central directory.
+     *
+     * @return the extra field, empty if there is none
+     */
+    public byte[] getExtra() {
+      return this.extra.clone();
+    }
+
+    public String getComment() {
+      return this.comment;
+    }
+
+    public int getInternalAttributes() {
+      return this.internalAttributes;
+    }
+
+    /**
+     * Returns the external file attributes (e.g. unix permissions).
+     *
+     * @return the external file attributes
+     */
+    public long getExternalAttributes() {
+      return this.externalAttributes;
+    }
+
+    /**
+     * Returns the offset of the local header of the entry as stored in the
+     * central directory: relative to the start of the zip file, which is not
+     * the start of the file if there is data in front of it (see
+     * {@link ZipArchive#prefix()}).
+     *
+     * @return the offset of the local header
+     */
+    public long getLocalHeaderOffset() {
+      return this.localHeaderOffset;
+    }
+
+    @Override
+    public String toString() {
+      return this.name;
+    }
+
+  }
+
+}
@@ -0,0 +1,413 @@
+package org.dyndns.fichtner.purgeannotationrefs.optimizer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes zip files whose entries are taken from {@link ZipArchive}s: Entries
+ * can be copied as they are stored in the source archive (without inflating
+ * and deflating them again) or be written with new data, which may have been
+ * compressed by other threads before (see {@link EntryData}). Local headers
+ * are always written with CRC and sizes, so no data descriptors are needed.
+ * Zip64 records are written only where values exceed the limits of the zip
+ * format (4 GB, 65535 entries). Attributes of the source entries (times, extra fields, comments, file
+ * attributes) are kept.
+ * <p>
+ * Writers can append to the archive they read from as well (see
+ * {@link #ZipArchiveWriter(WritableByteChannel, long)}): Entries not modified
+ * are retained where they are (see {@link #retain(ZipArchive.Entry)}), only
+ * the modified entries and the new central directory are written. Bytes of
+ * replaced entries and of the old central directory remain in the file until
+ * it is compacted (see {@link #compact(Path)}). Readers using the central
+ * directory (like class loaders and {@link java.util.zip.ZipFile}) read such
+ * files just fine, readers scanning the local headers (like
+ * {@link java.util.zip.ZipInputStream}) do not.
+ * <p>
+ * Writers are not thread-safe.
+ *
+ * @author Peter Fichtner
+ */
+public class ZipArchiveWriter implements Closeable {
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+  private static final int ZIP64_LOCATOR = 0x07064b50;
+  private static final int ZIP64_VERSION = 45;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+  private static final int UTF8_FLAG = 0x800;
+  private static final int MAX_U2 = ZipArchive.MAX_U2;
+  private static final long MAX_U4 = ZipArchive.MAX_U4;
+
+  private final WritableByteChannel channel;
+  private final long start;
+  private final List<CentralHeader> headers = new ArrayList<>();
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private long position;
+  private boolean finished;
+
+  /**
+   * Creates a new writer writing to the passed stream.
+   *
+   * @param output the stream to write to
+   */
+  public ZipArchiveWriter(final OutputStream output) {
+    this(Channels.newChannel(output));
+  }
+
+  /**
+   * Creates a new writer writing to the passed channel.
+   *
+   * @param channel the channel to write to
+   */
+  public ZipArchiveWriter(final WritableByteChannel channel) {
+    this(channel, 0);
+  }
+
+  /**
+   * Creates a new writer writing to the passed channel, which is positioned
+   * at the passed offset of the zip file (for example at the end of an
+   * existing zip file to append to).
+   *
+   * @param channel  the channel to write to
+   * @param position offset of the zip file the channel is positioned at
+   */
+  public ZipArchiveWriter(final WritableByteChannel channel, final long position) {
+    this.channel = channel;
+    this.start = position;
+    this.position = position;
+  }
+
+  /**
+   * Set the compression level of entries written with new data.
+   *
+   * @param level the compression level (see {@link Deflater})
+   * @return this instance
+   */
+  public ZipArchiveWriter setLevel(final int level) {
+    if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+        && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("invalid compression level " + level); //$NON-NLS-1$
+    }
+    this.level = level;
+    return this;
+  }
+
+  /**
+   * Returns the compression level of entries written with new data.
+   *
+   * @return the compression level
+   */
+  public int getLevel() {
+    return this.level;
+  }
+
+  /**
+   * Copies the passed entry as it is stored in the passed archive.
+   *
+   * @param archive the archive holding the entry
+   * @param entry   the entry to copy
+   * @throws IOException IO error
+   */
+  public void copy(final ZipArchive archive, final ZipArchive.Entry entry) throws IOException {
+    final CentralHeader header = new CentralHeader(entry, entry.getMethod(), entry.getCrc(),
+        entry.getCompressedSize(), entry.getSize());
+    writeLocalHeader(header, archive.localExtra(entry));
+    write(archive.rawData(entry));
+  }
+
+  /**
+   * Adds the passed entry to the central directory without writing it: The
+   * entry has to be stored in the zip file written to at the offset given by
+   * the entry already, which is the case when appending to the archive the
+   * entry has been read from.
+   *
+   * @param entry the entry to retain
+   * @throws IOException the entry is not stored before the data written
+   */
+  public void retain(final ZipArchive.Entry entry) throws IOException {
+    if (this.finished) {
+      throw new ZipException("zip file already finished"); //$NON-NLS-1$
+    }
+    if (entry.getLocalHeaderOffset() >= this.start) {
+      throw new ZipException(entry.getName() + " is not stored before offset " + this.start); //$NON-NLS-1$
+    }
+    // the local header is kept as it is, so is a data descriptor following the data
+    final CentralHeader header = new CentralHeader(entry, entry.getFlags(), entry.getMethod(),
+        entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+    header.offset = entry.getLocalHeaderOffset();
+    this.headers.add(header);
+  }
+
+  /**
+   * Writes the passed entry with new data. The data is compressed using the
+   * compression method of the source entry.
+   *
+   * @param archive the archive holding the entry
+   * @param entry   the entry to write
+   * @param data    the (uncompressed) data of the entry
+   * @throws IOException IO error
+   */
+  public void write(final ZipArchive archive, final ZipArchive.Entry entry, final byte[] data) throws IOException {
+    write(archive, entry, EntryData.compress(entry.getMethod(), data, this.level));
+  }
+
+  /**
+   * Writes the passed entry with new data already compressed.
+   *
+   * @param archive the archive holding the entry
+   * @param entry   the entry to write
+   * @param data    the compressed data of the entry
+   * @throws IOException IO error
+   */
+  public void write(final ZipArchive archive, final ZipArchive.Entry entry, final EntryData data) throws IOException {
+    final CentralHeader header = new CentralHeader(entry, data.getMethod(), data.getCrc(),
+        data.getCompressedSize(), data.getSize());
+    writeLocalHeader(header, archive.localExtra(entry));
+    write(ByteBuffer.wrap(data.data()));
+  }
+
+  private void writeLocalHeader(final CentralHeader header, final byte[] localExtra) throws IOException {
+    if (this.finished) {
+      throw new ZipException("zip file already finished"); //$NON-NLS-1$
+    }
+    header.offset = this.position;
+    this.headers.add(header);
+    // the local Zip64 extra field has to hold both sizes
+    final boolean zip64 = header.size >= MAX_U4 || header.compressedSize >= MAX_U4;
+    final byte[] extra = withZip64(localExtra, zip64 ? new long[]{header.size, header.compressedSize} : new long[0]);
+    final ByteBuffer buffer = buffer(30 + header.name.length + extra.length);
+    buffer.putInt(LOCAL_HEADER);
+    buffer.putShort((short) header.versionNeeded(zip64));
+    buffer.putShort((short) header.flags);
+    buffer.putShort((short) header.method);
+    buffer.putInt((int) header.entry.getDosTime());
+    buffer.putInt((int) header.crc);
+    buffer.putInt((int) (zip64 ? MAX_U4 : header.compressedSize));
+    buffer.putInt((int) (zip64 ? MAX_U4 : header.size));
+    buffer.putShort((short) header.name.length);
+    buffer.putShort((short) extra.length);
+    buffer.put(header.name);
+    buffer.put(extra);
+    write(buffer.flip());
+  }
+
+  /**
+   * Returns the passed extra fields with the Zip64 extra field replaced by
+   * one holding the passed values (or without any if there are no values).
+   */
+  private static byte[] withZip64(final byte[] extra, final long[] values) throws ZipException {
+    final ByteBuffer source = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer result = buffer(extra.length + 4 + values.length * 8);
+    if (values.length > 0) {
+      result.putShort((short) ZipArchive.ZIP64_EXTRA);
+      result.putShort((short) (values.length * 8));
+      for (final long value : values) {
+        result.putLong(value);
+      }
+    }
+    int offset = 0;
+    while (offset + 4 <= extra.length) {
+      final int length = Math.min(source.getShort(offset + 2) & 0xFFFF, extra.length - offset - 4);
+      if ((source.getShort(offset) & 0xFFFF) != ZipArchive.ZIP64_EXTRA) {
+        result.put(extra, offset, 4 + length);
+      }
+      offset += 4 + length;
+    }
+    if (result.position() > MAX_U2) {
+      throw new ZipException("extra field too long"); //$NON-NLS-1$
+    }
+    return Arrays.copyOf(result.array(), result.position());
+  }
+
+  /**
+   * Writes the central directory. No more entries can be written afterwards.
+   *
+   * @throws IOException IO error
+   */
+  public void finish() throws IOException {
+    if (this.finished) {
+      return;
+    }
+    this.finished = true;
+    final long directoryOffset = this.position;
+    for (final CentralHeader header : this.headers) {
+      // the central Zip64 extra field holds the values exceeding the limits only
+      final long[] values = new long[3];
+      int count = 0;
+      for (final long value : new long[]{header.size, header.compressedSize, header.offset}) {
+        if (value >= MAX_U4) {
+          values[count++] = value;
+        }
+      }
+      final byte[] extra = withZip64(header.entry.getExtra(), Arrays.copyOf(values, count));
+      final byte[] comment = header.entry.getComment() == null ? new byte[0]
+          : header.entry.getComment().getBytes(StandardCharsets.UTF_8);
+      final ByteBuffer buffer = buffer(46 + header.name.length + extra.length + comment.length);
+      buffer.putInt(CENTRAL_HEADER);
+      buffer.putShort((short) header.entry.getVersionMadeBy());
+      buffer.putShort((short) header.versionNeeded(count > 0));
+      buffer.putShort((short) header.flags);
+      buffer.putShort((short) header.method);
+      buffer.putInt((int) header.entry.getDosTime());
+      buffer.putInt((int) header.crc);
+      buffer.putInt((int) Math.min(header.compressedSize, MAX_U4));
+      buffer.putInt((int) Math.min(header.size, MAX_U4));
+      buffer.putShort((short) header.name.length);
+      buffer.putShort((short) extra.length);
+      buffer.putShort((short) comment.length);
+      buffer.putShort((short) 0);
+      buffer.putShort((short) header.entry.getInternalAttributes());
+      buffer.putInt((int) header.entry.getExternalAttributes());
+      buffer.putInt((int) Math.min(header.offset, MAX_U4));
+      buffer.put(header.name);
+      buffer.put(extra);
+      buffer.put(comment);
+      write(buffer.flip());
+    }
+    final long directorySize = this.position - directoryOffset;
+    final int count = this.headers.size();
+    if (count >= MAX_U2 || directoryOffset >= MAX_U4 || directorySize >= MAX_U4) {
+      writeZip64EndOfCentralDirectory(count, directorySize, directoryOffset);
+    }
+    final ByteBuffer buffer = buffer(22);
+    buffer.putInt(END_OF_CENTRAL_DIRECTORY);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) Math.min(count, MAX_U2));
+    buffer.putShort((short) Math.min(count, MAX_U2));
+    buffer.putInt((int) Math.min(directorySize, MAX_U4));
+    buffer.putInt((int) Math.min(directoryOffset, MAX_U4));
+    buffer.putShort((short) 0);
+    write(buffer.flip());
+  }
+
+  private void writeZip64EndOfCentralDirectory(final int count, final long directorySize,
+                                               final long directoryOffset) throws IOException {
+    final long recordOffset = this.position;
+    final ByteBuffer buffer = buffer(56 + 20);
+    buffer.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY);
+    // size of the remaining record
+    buffer.putLong(56 - 12);
+    buffer.putShort((short) ZIP64_VERSION);
+    buffer.putShort((short) ZIP64_VERSION);
+    buffer.putInt(0);
+    buffer.putInt(0);
+    buffer.putLong(count);
+    buffer.putLong(count);
+    buffer.putLong(directorySize);
+    buffer.putLong(directoryOffset);
+    buffer.putInt(ZIP64_LOCATOR);
+    buffer.putInt(0);
+    buffer.putLong(recordOffset);
+    buffer.putInt(1);
+    write(buffer.flip());
+  }
+
+  /**
+   * Writes the central directory and closes the underlying channel.
+   *
+   * @throws IOException IO error
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      this.channel.close();
+    }
+  }
+
+  /**
+   * Rewrites the passed zip file leaving out all bytes not referenced by its
+   * central directory (like entries replaced when appending). Data in front
+   * of the zip file (see {@link ZipArchive#prefix()}) is kept. The file is
+   * written to a temporary file first which then replaces the passed file.
+   *
+   * @param file the zip file to compact
+   * @throws IOException IO error
+   */
+  public static void compact(final Path file) throws IOException {
+    final Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp"); //$NON-NLS-1$
+    try {
+      try (ZipArchive archive = ZipArchive.open(file);
+           FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        final ByteBuffer prefix = archive.prefix();
+        final long offset = prefix.remaining() - archive.base();
+        while (prefix.hasRemaining()) {
+          channel.write(prefix);
+        }
+        // the offsets keep including the prefix or not
+        final ZipArchiveWriter output = new ZipArchiveWriter(channel, offset);
+        for (final ZipArchive.Entry entry : archive.entries()) {
+          output.copy(archive, entry);
+        }
+        output.finish();
+      }
+      DirectoryOptimizer.replace(temp, file, file);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static ByteBuffer buffer(final int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void write(final ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      this.position += this.channel.write(buffer);
+    }
+  }
+
+  private static final class CentralHeader {
+
+    private final ZipArchive.Entry entry;
+    private final byte[] name;
+    private final int flags;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private long offset;
+
+    private CentralHeader(final ZipArchive.Entry entry, final int method, final long crc,
+                          final long compressedSize, final long size) {
+      this(entry, entry.getFlags() & ~DATA_DESCRIPTOR_FLAG | UTF8_FLAG, method, crc, compressedSize, size);
+    }
+
+    private CentralHeader(final ZipArchive.Entry entry, final int flags, final int method, final long crc,
+                          final long compressedSize, final long size) {
+      this.entry = entry;
+      this.name = entry.getName().getBytes(StandardCharsets.UTF_8);
+      this.flags = flags;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+
+    private int versionNeeded(final boolean zip64) {
+      return Math.max(this.entry.getVersionNeeded(), zip64 ? ZIP64_VERSION : this.method == ZipEntry.DEFLATED ? 20 : 10);
+    }
+
+  }
+
+}
@@ -1,9 +1,31 @@
 package org.dyndns.fichtner.purgeannotationrefs.optimizer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -12,6 +34,24 @@ import static org.dyndns.fichtner.purgeannotationrefs.Util.isZip;
 
 /**
  * Optimizer to optimize class objects inside zip files (recursively).
+ * <p>
+ * If more than one thread is configured the entries are processed by a
+ * pipeline: One thread reads the entries, a pool of threads optimizes the
+ * classes and the calling thread writes the entries in their original order,
+ * so the result is the same as the one of the sequential processing. The
+ * bytes read ahead of the entry written are limited (see
+ * {@link #setMaxBytesInFlight(long)}). The {@link ClassOptimizer} has to be
+ * thread-safe then.
+ * <p>
+ * When reading {@link ZipArchive}s concurrently the sizes of all entries are
+ * known in advance: The largest entries (or the ones taking longest according
+ * to a {@link TimingProfile}) are started first, the others in their
+ * original order. Entries of nested zip files are optimized by the threads of
+ * the pool as well.
+ * <p>
+ * The compression of the entries written is decided by a
+ * {@link CompressionPolicy}, by default all entries keep their compression
+ * method.
  *
  * @author Peter Fichtner
  */
@@ -19,7 +59,21 @@ public class ZipOptimizer {
 
   private static final int BUFFER_SIZE = 4096;
 
+  /**
+   * Count of entries per thread that may be read ahead of the entry written.
+   */
+  private static final int ENTRIES_PER_THREAD = 16;
+
+  /**
+   * Default maximum count of bytes read ahead of the entry written.
+   */
+  public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 128L * 1024 * 1024;
+
   private final ClassOptimizer classOptimizer;
+  private int threads = 1;
+  private long maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
+  private CompressionPolicy compressionPolicy = new CompressionPolicy();
+  private TimingProfile timingProfile;
 
   /**
    * Creates a new ZipOptimizer doing delegation calls to the passed
@@ -31,21 +85,103 @@ public class ZipOptimizer {
     this.classOptimizer = classOptimizer;
   }
 
-  private static ZipEntry cloneZipEntry(final ZipEntry entry) {
+  /**
+   * Set the count of threads optimizing classes concurrently.
+   *
+   * @param threads count of threads, <code>1</code> (the default) processes
+   *                all entries on the calling thread
+   * @return this instance
+   */
+  public ZipOptimizer setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive but was " + threads); //$NON-NLS-1$
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Set the maximum count of bytes read ahead of the entry written when
+   * optimizing concurrently: Reading pauses until enough entries have been
+   * written. Entries copied from a {@link ZipArchive} as they are do not
+   * count, nested zip files are held in memory as a whole while they are
+   * optimized. Entries of zip streams larger than the budget are not read
+   * ahead at all: Reading pauses until the writing thread has copied them
+   * (see {@link #optimize(ZipInputStream, ZipOutputStream)}).
+   *
+   * @param maxBytesInFlight maximum count of bytes read ahead
+   * @return this instance
+   */
+  public ZipOptimizer setMaxBytesInFlight(long maxBytesInFlight) {
+    if (maxBytesInFlight < 1) {
+      throw new IllegalArgumentException("maxBytesInFlight must be positive but was " //$NON-NLS-1$
+          + maxBytesInFlight);
+    }
+    this.maxBytesInFlight = maxBytesInFlight;
+    return this;
+  }
+
+  /**
+   * Set the policy deciding the compression of the entries written. Nested
+   * zip files keep the compression of their entries.
+   *
+   * @param compressionPolicy the policy
+   * @return this instance
+   */
+  public ZipOptimizer setCompressionPolicy(final CompressionPolicy compressionPolicy) {
+    this.compressionPolicy = compressionPolicy;
+    return this;
+  }
+
+  /**
+   * Set the profile to schedule the entries by and to record the processing
+   * times of the entries processed concurrently into. The profile can be
+   * saved to schedule the next run.
+   *
+   * @param timingProfile the profile, <code>null</code> schedules by size
+   *                      and records nothing
+   * @return this instance
+   */
+  public ZipOptimizer setTimingProfile(final TimingProfile timingProfile) {
+    this.timingProfile = timingProfile;
+    return this;
+  }
+
+  private static ZipEntry cloneZipEntry(final ZipEntry entry, final int method) {
     final ZipEntry result = new ZipEntry(entry.getName());
     result.setExtra(entry.getExtra());
     result.setTime(entry.getTime());
-    result.setMethod(entry.getMethod());
+    result.setMethod(method);
     result.setComment(entry.getComment());
-    if (entry.getCrc() != -1) {
-      result.setCrc(entry.getCrc());
-    }
-    if (entry.getSize() != -1) {
-      result.setSize(entry.getSize());
+    // sizes of deflated entries are written after their data
+    if (method == ZipEntry.STORED && entry.getMethod() == ZipEntry.STORED) {
+      if (entry.getCrc() != -1) {
+        result.setCrc(entry.getCrc());
+      }
+      if (entry.getSize() != -1) {
+        result.setSize(entry.getSize());
+      }
     }
     return result;
   }
 
+  /**
+   * Returns the compression method of the passed entry when written, if it is
+   * deflated the level of the passed stream is set.
+   */
+  private int outputMethod(final ZipOutputStream output, final ZipEntry entry, final long size) {
+    final CompressionPolicy policy = this.compressionPolicy;
+    if (entry.isDirectory() || policy.isKeepAll()) {
+      return entry.getMethod();
+    }
+    final String name = entry.getName();
+    final int method = policy.method(name, size, entry.getMethod());
+    if (method == ZipEntry.DEFLATED) {
+      output.setLevel(policy.level(name, size, Deflater.DEFAULT_COMPRESSION));
+    }
+    return method;
+  }
+
   /**
    * Optimizes the classes inside the passed zip stream and write the result
    * to the passed output stream.
@@ -56,17 +192,426 @@ public class ZipOptimizer {
    */
   public void optimize(final ZipInputStream input,
                        final ZipOutputStream output) throws IOException {
+    if (this.threads > 1) {
+      optimizeConcurrently(input, output);
+      return;
+    }
+    // ZipOutputStream does not allow duplicate entries, they are skipped unread
+    final NameSet names = new NameSet();
     ZipEntry entry;
-    // ZipOutputStream does not allow duplicate entries
-    final Set<String> names = new HashSet<>();
     while ((entry = input.getNextEntry()) != null) {
-      final String name = entry.getName();
-      if (names.add(name)) {
+      if (names.add(entry.getName())) {
         processZipEntry(input, output, entry);
       }
     }
   }
 
+  /**
+   * Optimizes the classes inside the passed archive and write the result to
+   * the passed output stream. The entries are read by random access, so when
+   * optimizing concurrently the threads of the pool read (and inflate) the
+   * entries as well.
+   *
+   * @param archive archive to read from
+   * @param output  stream to write to
+   * @throws IOException IO error
+   */
+  public void optimize(final ZipArchive archive,
+                       final ZipOutputStream output) throws IOException {
+    if (this.threads == 1) {
+      // ZipOutputStream does not allow duplicate entries, the archive knows the first entry of each name
+      for (final ZipArchive.Entry entry : archive.entries()) {
+        if (archive.isFirst(entry)) {
+          writeZipEntry(output, archive.toZipEntry(entry), processArchiveEntry(archive, entry));
+        }
+      }
+      return;
+    }
+    this.<ZipEntry, byte[]>runPipeline(pipeline -> {
+      final Function<ZipArchive.Entry, Callable<byte[]>> task = entry -> isModifiable(entry)
+          ? timed(entry, () -> processArchiveEntry(archive, entry)) : () -> processArchiveEntry(archive, entry);
+      final Map<ZipArchive.Entry, Pipeline.Prefetched<byte[]>> prefetched = prefetch(pipeline, archive,
+          ZipOptimizer::isModifiable, task);
+      for (final ZipArchive.Entry entry : archive.entries()) {
+        if (!archive.isFirst(entry)) {
+          continue;
+        }
+        final Pipeline.Prefetched<byte[]> started = prefetched.get(entry);
+        if (started == null) {
+          pipeline.transform(archive.toZipEntry(entry), entry.getSize(), task.apply(entry));
+        } else {
+          pipeline.transform(archive.toZipEntry(entry), started);
+        }
+      }
+    }, (entry, data) -> writeZipEntry(output, entry, data));
+  }
+
+  /**
+   * Optimizes the classes inside the passed archive and write the result to
+   * the passed writer. Entries not modified (resources, directories and
+   * classes the {@link ClassOptimizer} returns as they are) are copied as
+   * they are stored in the archive without inflating and deflating them
+   * unless the {@link CompressionPolicy} changes their compression. When
+   * optimizing concurrently modified entries are compressed by the threads of
+   * the pool as well, large entries block by block (see {@link EntryData}).
+   *
+   * @param archive archive to read from
+   * @param output  writer to write to
+   * @throws IOException IO error
+   */
+  public void optimize(final ZipArchive archive,
+                       final ZipArchiveWriter output) throws IOException {
+    optimize(archive, output.getLevel(), (entry, data) -> {
+      if (data == null) {
+        output.copy(archive, entry);
+      } else {
+        output.write(archive, entry, data);
+      }
+    });
+  }
+
+  /**
+   * Optimizes the classes inside the passed zip file in place: Only the
+   * modified entries and a new central directory are appended to the file
+   * itself, behind the existing data, entries not modified are left where
+   * they are (see {@link ZipArchiveWriter#retain(ZipArchive.Entry)}). If
+   * nothing is modified the file is not written at all. The new end of
+   * central directory record is written last, so until then the file still
+   * is the original zip file with some unreferenced bytes at its end. The
+   * appended data is written through a channel of its own while the archive
+   * is mapped read-only, if anything fails the file is truncated back to its
+   * original length. The bytes of the replaced entries remain in the file
+   * until it is compacted (see {@link ZipArchiveWriter#compact(Path)}).
+   *
+   * @param file the zip file to optimize
+   * @return <code>true</code> if the file has been modified
+   * @throws IOException IO error
+   */
+  public boolean optimizeInPlace(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      final long size = channel.size();
+      final boolean[] modified = {false};
+      try {
+        try (ZipArchive archive = ZipArchive.open(file)) {
+          // offsets are relative to the start of the zip file, data in front of it is kept
+          final ZipArchiveWriter output = new ZipArchiveWriter(channel.position(size), size - archive.base());
+          optimize(archive, output.getLevel(), (entry, data) -> {
+            if (data == null) {
+              output.retain(entry);
+            } else {
+              output.write(archive, entry, data);
+              modified[0] = true;
+            }
+          });
+          if (modified[0]) {
+            output.finish();
+          }
+        }
+      } catch (final IOException | RuntimeException | Error e) {
+        // the archive has been closed already
+        channel.truncate(size);
+        throw e;
+      }
+      return modified[0];
+    }
+  }
+
+  private void optimize(final ZipArchive archive, final int level,
+                        final Pipeline.Writer<ZipArchive.Entry, EntryData> writer) throws IOException {
+    if (this.threads == 1) {
+      for (final ZipArchive.Entry entry : archive.entries()) {
+        if (archive.isFirst(entry)) {
+          writer.write(entry, compressedData(archive, entry, level));
+        }
+      }
+      return;
+    }
+    runPipeline(pipeline -> {
+      final Predicate<ZipArchive.Entry> transformed = entry -> isModifiable(entry) || !keepsCompression(entry);
+      final Function<ZipArchive.Entry, Callable<EntryData>> task = entry -> timed(entry,
+          () -> compressedData(archive, entry, level));
+      final Map<ZipArchive.Entry, Pipeline.Prefetched<EntryData>> prefetched = prefetch(pipeline, archive,
+          transformed, task);
+      for (final ZipArchive.Entry entry : archive.entries()) {
+        if (!archive.isFirst(entry)) {
+          continue;
+        }
+        final Pipeline.Prefetched<EntryData> started = prefetched.get(entry);
+        if (started != null) {
+          pipeline.transform(entry, started);
+        } else if (transformed.test(entry)) {
+          pipeline.transform(entry, entry.getSize(), task.apply(entry));
+        } else {
+          // copied from the mapped archive
+          pipeline.pass(entry, 0, null);
+        }
+      }
+    }, writer);
+  }
+
+  /**
+   * Starts the entries expected to take longest (one per thread) ahead of
+   * their turn.
+   */
+  private <E, D> Map<ZipArchive.Entry, Pipeline.Prefetched<D>> prefetch(
+      final Pipeline<E, D> pipeline, final ZipArchive archive,
+      final Predicate<ZipArchive.Entry> transformed,
+      final Function<ZipArchive.Entry, Callable<D>> task) {
+    final Comparator<ZipArchive.Entry> byEstimate = Comparator.comparingLong(this::estimate);
+    final PriorityQueue<ZipArchive.Entry> longest = new PriorityQueue<>(this.threads + 1, byEstimate);
+    for (final ZipArchive.Entry entry : archive.entries()) {
+      if (archive.isFirst(entry) && transformed.test(entry)) {
+        longest.add(entry);
+        if (longest.size() > this.threads) {
+          longest.poll();
+        }
+      }
+    }
+    final List<ZipArchive.Entry> entries = new ArrayList<>(longest);
+    entries.sort(byEstimate.reversed());
+    final Map<ZipArchive.Entry, Pipeline.Prefetched<D>> result = new IdentityHashMap<>();
+    for (final ZipArchive.Entry entry : entries) {
+      final Pipeline.Prefetched<D> started = pipeline.prefetch(entry.getSize(), task.apply(entry));
+      if (started != null) {
+        result.put(entry, started);
+      }
+    }
+    return result;
+  }
+
+  private long estimate(final ZipArchive.Entry entry) {
+    final TimingProfile profile = this.timingProfile;
+    return profile == null ? entry.getSize() : profile.estimate(entry.getName(), entry.getSize());
+  }
+
+  /**
+   * Returns the passed task recording its processing time into the
+   * {@link TimingProfile} (if there is one).
+   */
+  private <D> Callable<D> timed(final ZipArchive.Entry entry, final Callable<D> task) {
+    return timed(entry.getName(), entry.getSize(), task);
+  }
+
+  private <D> Callable<D> timed(final String name, final long size, final Callable<D> task) {
+    final TimingProfile profile = this.timingProfile;
+    if (profile == null) {
+      return task;
+    }
+    return () -> {
+      final long start = System.nanoTime();
+      final D result = task.call();
+      profile.record(name, size, System.nanoTime() - start);
+      return result;
+    };
+  }
+
+  private static boolean isModifiable(final ZipArchive.Entry entry) {
+    final String name = entry.getName();
+    return !entry.isDirectory() && (isClass(name) || isZip(name));
+  }
+
+  /**
+   * Returns the new data of the passed entry or <code>null</code> if the
+   * entry is not modified.
+   */
+  private byte[] modifiedData(final ZipArchive archive,
+                              final ZipArchive.Entry entry) throws IOException {
+    if (!isModifiable(entry)) {
+      return null;
+    }
+    final String name = entry.getName();
+    final byte[] bytes = archive.data(entry);
+    final byte[] result = isClass(name) ? transformClass(name, bytes) : transformNestedZip(name, bytes);
+    return result == bytes ? null : result;
+  }
+
+  /**
+   * Returns the new data of the passed entries (<code>null</code> for the
+   * ones not modified). When called by a thread of a {@link ForkJoinPool} the
+   * entries are optimized by the threads of the pool.
+   */
+  private byte[][] modifiedData(final ZipArchive archive,
+                                final List<ZipArchive.Entry> entries) throws IOException {
+    final byte[][] result = new byte[entries.size()][];
+    if (!ForkJoinTask.inForkJoinPool()) {
+      for (int i = 0; i < result.length; i++) {
+        result[i] = modifiedData(archive, entries.get(i));
+      }
+      return result;
+    }
+    final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (int i = 0; i < result.length; i++) {
+      final int index = i;
+      if (isModifiable(entries.get(index))) {
+        tasks.add(ForkJoinTask.adapt(() -> {
+          try {
+            result[index] = modifiedData(archive, entries.get(index));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }));
+      }
+    }
+    try {
+      ForkJoinTask.invokeAll(tasks);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return result;
+  }
+
+  private boolean keepsCompression(final ZipArchive.Entry entry) {
+    return entry.isDirectory()
+        || this.compressionPolicy.keeps(entry.getName(), entry.getSize(), entry.getMethod());
+  }
+
+  /**
+   * Returns the new data of the passed entry compressed or <code>null</code>
+   * if the entry is not modified and keeps its compression.
+   */
+  private EntryData compressedData(final ZipArchive archive, final ZipArchive.Entry entry,
+                                   final int level) throws IOException {
+    final byte[] data = modifiedData(archive, entry);
+    if (data == null && keepsCompression(entry)) {
+      return null;
+    }
+    final String name = entry.getName();
+    final CompressionPolicy policy = this.compressionPolicy;
+    return EntryData.compress(policy.method(name, entry.getSize(), entry.getMethod()),
+        data == null ? archive.data(entry) : data, policy.level(name, entry.getSize(), level));
+  }
+
+  private byte[] processArchiveEntry(final ZipArchive archive,
+                                     final ZipArchive.Entry entry) throws IOException {
+    if (entry.isDirectory()) {
+      return new byte[0];
+    }
+    final String name = entry.getName();
+    final byte[] bytes = archive.data(entry);
+    if (isClass(name)) {
+      return transformClass(name, bytes);
+    }
+    return isZip(name) ? transformNestedZip(name, bytes) : bytes;
+  }
+
+  /**
+   * Reads the entries on a thread of its own and hands the classes and
+   * nested zip files to a pool of threads, the entries are written as soon
+   * as they (and all entries before them) are done. Entries larger than the
+   * budget (see {@link #setMaxBytesInFlight(long)}) are passed to the writing
+   * thread as far as they have been read, it copies the rest from the stream
+   * while the reading thread waits, so they are processed sequentially.
+   */
+  private void optimizeConcurrently(final ZipInputStream input,
+                                    final ZipOutputStream output) throws IOException {
+    final int limit = (int) Math.min(this.maxBytesInFlight, Integer.MAX_VALUE - 8);
+    this.<ZipEntry, StreamData>runPipeline(pipeline -> {
+      // ZipOutputStream does not allow duplicate entries, they are skipped unread
+      final NameSet names = new NameSet();
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        if (!names.add(entry.getName())) {
+          continue;
+        }
+        final String name = entry.getName();
+        final byte[] bytes = entry.getSize() > limit ? new byte[0] : input.readNBytes(limit + 1);
+        if (entry.getSize() > limit || bytes.length > limit) {
+          final CountDownLatch written = new CountDownLatch(1);
+          pipeline.pass(entry, bytes.length, new StreamData(bytes, written));
+          // interrupted if writing fails
+          written.await();
+        } else if (entry.isDirectory()) {
+          pipeline.pass(entry, bytes.length, new StreamData(bytes, null));
+        } else if (isClass(name)) {
+          pipeline.transform(entry, bytes.length, timed(name, bytes.length,
+              () -> new StreamData(transformClass(name, bytes), null)));
+        } else if (isZip(name)) {
+          pipeline.transform(entry, bytes.length, timed(name, bytes.length,
+              () -> new StreamData(transformNestedZip(name, bytes), null)));
+        } else {
+          pipeline.pass(entry, bytes.length, new StreamData(bytes, null));
+        }
+        input.closeEntry();
+      }
+    }, (entry, data) -> {
+      if (data.written == null) {
+        writeZipEntry(output, entry, data.data);
+      } else {
+        writeLargeZipEntry(input, output, entry, data.data);
+        data.written.countDown();
+      }
+    });
+  }
+
+  /**
+   * The data of an entry read from a zip stream. If the entry is larger than
+   * the budget the data is the part read so far and the reading thread waits
+   * for the rest of the entry to be written.
+   */
+  private static final class StreamData {
+
+    private final byte[] data;
+    private final CountDownLatch written;
+
+    private StreamData(final byte[] data, final CountDownLatch written) {
+      this.data = data;
+      this.written = written;
+    }
+
+  }
+
+  /**
+   * Writes the passed entry whose first bytes have been read already, the
+   * rest is read from the passed stream. Resources are copied without
+   * holding them in memory unless the header has to carry CRC and size of
+   * their data, classes and nested zip files are optimized as a whole like
+   * when processing them sequentially.
+   */
+  private void writeLargeZipEntry(final ZipInputStream input, final ZipOutputStream output,
+                                  final ZipEntry entry, final byte[] head) throws IOException {
+    final String name = entry.getName();
+    final int method = outputMethod(output, entry, entry.getSize());
+    final boolean modifiable = isClass(name) || isZip(name);
+    if (modifiable || method == ZipEntry.STORED && entry.getMethod() != ZipEntry.STORED) {
+      final byte[] rest = input.readAllBytes();
+      final byte[] bytes = Arrays.copyOf(head, head.length + rest.length);
+      System.arraycopy(rest, 0, bytes, head.length, rest.length);
+      writeZipEntry(output, entry, !modifiable ? bytes
+          : isClass(name) ? transformClass(name, bytes) : transformNestedZip(name, bytes));
+      return;
+    }
+    output.putNextEntry(cloneZipEntry(entry, method));
+    output.write(head);
+    input.transferTo(output);
+    output.closeEntry();
+  }
+
+  private <E, D> void runPipeline(final Pipeline.Reader<E, D> reader,
+                                  final Pipeline.Writer<E, D> writer) throws IOException {
+    final ExecutorService pool = new ForkJoinPool(this.threads);
+    try {
+      new Pipeline<E, D>(pool, this.threads * ENTRIES_PER_THREAD, this.maxBytesInFlight).run(reader, writer);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void writeZipEntry(final ZipOutputStream output, final ZipEntry source,
+                             final byte[] data) throws IOException {
+    final ZipEntry entry = cloneZipEntry(source, outputMethod(output, source, data.length));
+    if (entry.getMethod() == ZipEntry.STORED) {
+      // the data may have been modified
+      final CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setCrc(crc.getValue());
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+    }
+    output.putNextEntry(entry);
+    output.write(data);
+    output.closeEntry();
+  }
+
   /**
    * Process the passed ZipEntry.
    *
@@ -78,18 +623,28 @@ public class ZipOptimizer {
   protected void processZipEntry(final ZipInputStream input,
                                  final ZipOutputStream output, final ZipEntry entry)
       throws IOException {
-    output.putNextEntry(cloneZipEntry(entry));
-    if (!entry.isDirectory()) {
-      final String name = entry.getName();
-      if (isClass(name)) {
-        processClass(name, input, output);
-      } else if (isZip(name)) {
-        processNestedZip(name, input, output);
-      } else {
-        processResource(name, input, output);
+    final String name = entry.getName();
+    final int method = outputMethod(output, entry, entry.getSize());
+    final boolean modifiable = isClass(name) || isZip(name);
+    if (!entry.isDirectory() && method == ZipEntry.STORED
+        && (modifiable || entry.getMethod() != ZipEntry.STORED)) {
+      // the header of stored entries has to carry CRC and size of the data
+      final byte[] bytes = input.readAllBytes();
+      writeZipEntry(output, entry, !modifiable ? bytes
+          : isClass(name) ? transformClass(name, bytes) : transformNestedZip(name, bytes));
+    } else {
+      output.putNextEntry(cloneZipEntry(entry, method));
+      if (!entry.isDirectory()) {
+        if (isClass(name)) {
+          processClass(name, input, output);
+        } else if (isZip(name)) {
+          processNestedZip(name, input, output);
+        } else {
+          processResource(name, input, output);
+        }
       }
+      output.closeEntry();
     }
-    output.closeEntry();
     input.closeEntry();
   }
 
@@ -103,7 +658,52 @@ public class ZipOptimizer {
    */
   protected void processNestedZip(String name, final ZipInputStream input,
                                   final ZipOutputStream output) throws IOException {
-    optimize(input, output);
+    output.write(transformNestedZip(name, input.readAllBytes()));
+  }
+
+  /**
+   * Optimize the passed nested zip file: It is rebuilt as a zip file of its
+   * own keeping the compression methods of its entries, entries not modified
+   * are copied as they are stored. If nothing is modified at all (or the data
+   * is no zip file) the passed array itself is returned. Nested zip files are
+   * processed by the thread calling this method, when optimizing
+   * concurrently independent nested zip files are processed by different
+   * threads of the pool.
+   *
+   * @param name  of the nested zip file
+   * @param bytes the nested zip file
+   * @return the optimized zip file or <code>bytes</code> if nothing has been
+   * modified
+   * @throws IOException IO error
+   */
+  protected byte[] transformNestedZip(String name, final byte[] bytes) throws IOException {
+    final ZipArchive archive;
+    try {
+      archive = ZipArchive.wrap(ByteBuffer.wrap(bytes));
+    } catch (ZipException e) {
+      return bytes;
+    }
+    final List<ZipArchive.Entry> entries = new ArrayList<>();
+    for (final ZipArchive.Entry entry : archive.entries()) {
+      if (archive.isFirst(entry)) {
+        entries.add(entry);
+      }
+    }
+    final byte[][] data = modifiedData(archive, entries);
+    if (Arrays.stream(data).allMatch(Objects::isNull)) {
+      return bytes;
+    }
+    final ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length);
+    try (ZipArchiveWriter output = new ZipArchiveWriter(result)) {
+      for (int i = 0; i < entries.size(); i++) {
+        if (data[i] == null) {
+          output.copy(archive, entries.get(i));
+        } else {
+          output.write(archive, entries.get(i), data[i]);
+        }
+      }
+    }
+    return result.toByteArray();
   }
 
   /**
@@ -116,7 +716,21 @@ public class ZipOptimizer {
    */
   protected void processClass(String name, final ZipInputStream input,
                               final ZipOutputStream output) throws IOException {
-    this.classOptimizer.optimize(input, output);
+    output.write(transformClass(name, input.readAllBytes()));
+  }
+
+  /**
+   * Optimize the passed class. When optimizing concurrently this method is
+   * called by the threads of the pool (and {@link #processClass(String,
+   * ZipInputStream, ZipOutputStream)} is not called at all).
+   *
+   * @param name  of the passed class
+   * @param bytes the class file
+   * @return the optimized class file
+   * @throws IOException IO error
+   */
+  protected byte[] transformClass(String name, final byte[] bytes) throws IOException {
+    return this.classOptimizer.optimize(bytes);
   }
 
   /**
@@ -0,0 +1,162 @@
+package org.dyndns.fichtner.purgeannotationrefs.visitors;
+
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationFilter;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.RecordComponentVisitor;
+
+import java.util.BitSet;
+
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.*;
+import static org.dyndns.fichtner.purgeannotationrefs.Util.*;
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Class for removing annotations from the class and all of its members
+ * (fields, constructors, methods, parameters and record components) in one
+ * pass. Each annotation is looked up once in the {@link AnnotationFilter},
+ * the returned mask decides whether the element currently visited is
+ * affected.
+ *
+ * @author Peter Fichtner
+ */
+public class AnnotationFilteringVisitor extends ClassVisitor {
+
+  private final AnnotationFilter filter;
+  private final int configured;
+  private BitSet methods;
+  private int methodIndex;
+  private boolean modified;
+
+  /**
+   * Creates a new instance delegating all calls to the passed visitor.
+   *
+   * @param classVisitor delegate visitor
+   * @param filter       the filter deciding which annotations to remove
+   * @param configured   mask of the elements the filter may remove annotations
+   *                     from, members of other elements are not wrapped at all
+   */
+  public AnnotationFilteringVisitor(ClassVisitor classVisitor,
+                                    AnnotationFilter filter, int configured) {
+    super(ASM9, classVisitor);
+    this.filter = filter;
+    this.configured = configured;
+  }
+
+  /**
+   * Restrict filtering to the methods with the passed indices (in class file
+   * order). All other methods are passed to the delegate unwrapped, so a
+   * {@link org.objectweb.asm.ClassWriter} sharing the constant pool of the
+   * class read can copy them as they are.
+   *
+   * @param methods indices of the methods to filter
+   * @return this instance
+   */
+  public AnnotationFilteringVisitor onlyMethods(BitSet methods) {
+    this.methods = methods;
+    return this;
+  }
+
+  private boolean removes(String desc, int element) {
+    boolean removes = (this.filter.targets(desc) & element) != 0;
+    this.modified |= removes;
+    return removes;
+  }
+
+  /**
+   * Returns <code>true</code> if at least one annotation has been removed.
+   *
+   * @return <code>true</code> if at least one annotation has been removed
+   */
+  public boolean isModified() {
+    return this.modified;
+  }
+
+  private boolean isConfigured(int elements) {
+    return (this.configured & elements) != 0;
+  }
+
+  @Override
+  public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+    return isConfigured(TYPES.mask()) && removes(desc, TYPES.mask()) ? annotationRemover()
+        : super.visitAnnotation(desc, visible);
+  }
+
+  @Override
+  public FieldVisitor visitField(int access, String name, String desc,
+                                 String signature, Object value) {
+    FieldVisitor fieldVisitor = super.visitField(access, name, desc, signature, value);
+    return fieldVisitor == null || !isConfigured(FIELDS.mask()) ? fieldVisitor
+        : new FilteringFieldVisitor(fieldVisitor);
+  }
+
+  @Override
+  public MethodVisitor visitMethod(int access, String name, String desc,
+                                   String signature, String[] exceptions) {
+    MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+    int element = methodElement(name);
+    boolean filter = this.methods == null || this.methods.get(this.methodIndex);
+    this.methodIndex++;
+    return methodVisitor == null || !filter || !isConfigured(element | PARAMETERS.mask()) ? methodVisitor
+        : new FilteringMethodVisitor(methodVisitor, element);
+  }
+
+  @Override
+  public RecordComponentVisitor visitRecordComponent(String name, String descriptor, String signature) {
+    RecordComponentVisitor recordComponentVisitor = super.visitRecordComponent(name, descriptor, signature);
+    return recordComponentVisitor == null || !isConfigured(RECORD_COMPONENTS.mask()) ? recordComponentVisitor
+        : new FilteringRecordComponentVisitor(recordComponentVisitor);
+  }
+
+  private final class FilteringFieldVisitor extends FieldVisitor {
+
+    private FilteringFieldVisitor(FieldVisitor fieldVisitor) {
+      super(ASM9, fieldVisitor);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      return removes(desc, FIELDS.mask()) ? annotationRemover() : super.visitAnnotation(desc, visible);
+    }
+
+  }
+
+  private final class FilteringMethodVisitor extends MethodVisitor {
+
+    private final int element;
+
+    private FilteringMethodVisitor(MethodVisitor methodVisitor, int element) {
+      super(ASM9, methodVisitor);
+      this.element = element;
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      return removes(desc, this.element) ? annotationRemover() : super.visitAnnotation(desc, visible);
+    }
+
+    @Override
+    public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+      return removes(desc, PARAMETERS.mask()) ? annotationRemover()
+          : super.visitParameterAnnotation(parameter, desc, visible);
+    }
+
+  }
+
+  private final class FilteringRecordComponentVisitor extends RecordComponentVisitor {
+
+    private FilteringRecordComponentVisitor(RecordComponentVisitor recordComponentVisitor) {
+      super(ASM9, recordComponentVisitor);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+      return removes(descriptor, RECORD_COMPONENTS.mask()) ? annotationRemover()
+          : super.visitAnnotation(descriptor, visible);
+    }
+
+  }
+
+}
@@ -0,0 +1,74 @@
+package org.dyndns.fichtner.purgeannotationrefs.testcode;
+
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationAttributeStripper;
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.ClassOptimizer;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleClass;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.util.function.Function;
+
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.classAsStream;
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.jasmin.JasminUtil.streamToJasmin;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Differential test: the byte level stripper has to produce the same classes
+ * as the ASM based remover.
+ */
+public class TestAnnotationAttributeStripper {
+
+  @Test
+  public void sameResultAsAsmForExampleClass() throws IOException {
+    assertSameResultAsAsm(ExampleClass.class, MyAnno.class);
+  }
+
+  @Test
+  public void sameResultAsAsmForExampleRecord() throws IOException {
+    assertSameResultAsAsm(ExampleRecord.class, MyAnno.class);
+    assertSameResultAsAsm(ExampleRecord.class, MyRecordAnno.class);
+  }
+
+  @Test
+  public void sameResultAsAsmForAnnotationWithDefault() throws IOException {
+    assertSameResultAsAsm(MyAnno.class, MyAnno.class);
+  }
+
+  @Test
+  public void sameResultAsAsmWhenCompacting() throws IOException {
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover()
+        .remove(new StringMatcher(MyAnno.class.getName())).setCompactConstantPool(true);
+    assertEquals(jasmin(ExampleClass.class, remover), jasmin(ExampleClass.class, new AnnotationAttributeStripper(remover)));
+  }
+
+  private static void assertSameResultAsAsm(Class<?> clazz, Class<? extends Annotation> anno) throws IOException {
+    for (RemoveFrom removeFrom : RemoveFrom.values()) {
+      Function<AnnotationReferenceRemover, AnnotationReferenceRemover> configure = removeFrom == RemoveFrom.ALL
+          ? r -> r.remove(new StringMatcher(anno.getName()))
+          : r -> r.removeFrom(removeFrom, new StringMatcher(anno.getName()));
+      AnnotationReferenceRemover remover = configure.apply(new AnnotationReferenceRemover());
+      String expected = jasmin(clazz, remover);
+      assertEquals(expected, jasmin(clazz, new AnnotationAttributeStripper(remover)),
+          clazz.getSimpleName() + ", " + anno.getSimpleName() + " from " + removeFrom);
+    }
+    assertNotEquals(jasmin(clazz, new AnnotationReferenceRemover()),
+        jasmin(clazz, new AnnotationAttributeStripper(new AnnotationReferenceRemover().remove(new StringMatcher(anno.getName())))));
+  }
+
+  private static String jasmin(Class<?> clazz, ClassOptimizer optimizer) throws IOException {
+    try (InputStream is = classAsStream(clazz); ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+      optimizer.optimize(is, os);
+      return streamToJasmin(new ByteArrayInputStream(os.toByteArray()));
+    }
+  }
+
+}
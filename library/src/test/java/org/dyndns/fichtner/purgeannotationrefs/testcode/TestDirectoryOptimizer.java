@@ -0,0 +1,250 @@
+package org.dyndns.fichtner.purgeannotationrefs.testcode;
+
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.DirectoryOptimizer;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.DirectoryOptimizer.Action;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.DirectoryOptimizer.Result;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleClass;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.classAsStream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class TestDirectoryOptimizer {
+
+  private static final byte[] RESOURCE = "not a class".getBytes(StandardCharsets.UTF_8);
+
+  private final AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+      .remove(new StringMatcher(MyAnno.class.getName())).build());
+
+  @Test
+  public void relativePathsAreKept() throws IOException {
+    Path source = createTree();
+    Path target = Files.createTempDirectory("target");
+    try {
+      List<Result> results = new DirectoryOptimizer(this.remover).optimize(source, target);
+      assertEquals(List.of("META-INF/resource.txt:COPIED", "a/b/ExampleClass.class:OPTIMIZED",
+          "a/c/ExampleRecord.class:OPTIMIZED"), toStrings(results));
+      assertArrayEquals(this.remover.optimize(read(ExampleClass.class)),
+          Files.readAllBytes(target.resolve("a/b/ExampleClass.class")));
+      assertArrayEquals(this.remover.optimize(read(ExampleRecord.class)),
+          Files.readAllBytes(target.resolve("a/c/ExampleRecord.class")));
+      assertArrayEquals(RESOURCE, Files.readAllBytes(target.resolve("META-INF/resource.txt")));
+      // the source is left untouched
+      assertArrayEquals(read(ExampleClass.class),
+          Files.readAllBytes(source.resolve("a/b/ExampleClass.class")));
+    } finally {
+      delete(source);
+      delete(target);
+    }
+  }
+
+  @Test
+  public void inPlaceOptimizesClassesOnly() throws IOException {
+    Path directory = createTree();
+    try {
+      List<Result> results = new DirectoryOptimizer(this.remover).optimize(directory);
+      assertEquals(List.of("a/b/ExampleClass.class:OPTIMIZED", "a/c/ExampleRecord.class:OPTIMIZED"),
+          toStrings(results));
+      assertArrayEquals(this.remover.optimize(read(ExampleClass.class)),
+          Files.readAllBytes(directory.resolve("a/b/ExampleClass.class")));
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void unchangedClassesAreNotWritten() throws IOException {
+    Path directory = createTree();
+    Path unchanged = directory.resolve("TestDirectoryOptimizer.class");
+    Files.write(unchanged, read(TestDirectoryOptimizer.class));
+    FileTime lastModified = FileTime.fromMillis(0);
+    Files.setLastModifiedTime(unchanged, lastModified);
+    try {
+      List<Result> results = new DirectoryOptimizer(this.remover).optimize(directory);
+      assertEquals("TestDirectoryOptimizer.class:UNCHANGED", toStrings(results).get(0));
+      assertEquals(lastModified, Files.getLastModifiedTime(unchanged));
+      // a second run has nothing to do
+      Files.setLastModifiedTime(directory.resolve("a/b/ExampleClass.class"), lastModified);
+      assertEquals("a/b/ExampleClass.class:UNCHANGED",
+          toStrings(new DirectoryOptimizer(this.remover).optimize(directory)).get(1));
+      assertEquals(lastModified, Files.getLastModifiedTime(directory.resolve("a/b/ExampleClass.class")));
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void permissionsAreKept() throws IOException {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    Path source = createTree();
+    Path target = Files.createTempDirectory("target");
+    try {
+      try (Stream<Path> paths = Files.walk(source)) {
+        for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+          Files.setPosixFilePermissions(path, permissions);
+        }
+      }
+      for (Result result : new DirectoryOptimizer(this.remover).optimize(source, target)) {
+        assertEquals(permissions, Files.getPosixFilePermissions(target.resolve(result.getPath())));
+      }
+      for (Result result : new DirectoryOptimizer(this.remover).optimize(source)) {
+        assertEquals(Action.OPTIMIZED, result.getAction());
+        assertEquals(permissions, Files.getPosixFilePermissions(source.resolve(result.getPath())));
+      }
+    } finally {
+      delete(source);
+      delete(target);
+    }
+  }
+
+  @Test
+  public void unchangedFilesAreLinked() throws IOException {
+    Path source = createTree();
+    Files.write(source.resolve("TestDirectoryOptimizer.class"), read(TestDirectoryOptimizer.class));
+    Path target = Files.createTempDirectory("target");
+    try {
+      for (int run = 0; run < 2; run++) {
+        List<Result> results = new DirectoryOptimizer(this.remover).setLink(true).optimize(source, target);
+        assertEquals(List.of("META-INF/resource.txt:LINKED", "TestDirectoryOptimizer.class:LINKED",
+            "a/b/ExampleClass.class:OPTIMIZED", "a/c/ExampleRecord.class:OPTIMIZED"), toStrings(results));
+        for (Result result : results) {
+          assertEquals(result.getAction() == Action.LINKED,
+              Files.isSameFile(source.resolve(result.getPath()), target.resolve(result.getPath())));
+        }
+      }
+    } finally {
+      delete(source);
+      delete(target);
+    }
+  }
+
+  @Test
+  public void singleFilesAreHandledLikeFilesOfATree() throws IOException {
+    Path source = createTree();
+    Path unchanged = source.resolve("TestDirectoryOptimizer.class");
+    Files.write(unchanged, read(TestDirectoryOptimizer.class));
+    Path target = Files.createTempDirectory("target");
+    try {
+      DirectoryOptimizer optimizer = new DirectoryOptimizer(this.remover).setLink(true);
+      Path optimized = source.resolve("a/b/ExampleClass.class");
+      assertEquals(Action.OPTIMIZED,
+          optimizer.optimizeFile(optimized, target.resolve("ExampleClass.class")).getAction());
+      assertArrayEquals(this.remover.optimize(read(ExampleClass.class)),
+          Files.readAllBytes(target.resolve("ExampleClass.class")));
+      assertEquals(Action.LINKED,
+          optimizer.optimizeFile(unchanged, target.resolve("TestDirectoryOptimizer.class")).getAction());
+      assertTrue(Files.isSameFile(unchanged, target.resolve("TestDirectoryOptimizer.class")));
+      // in place unchanged files are not written
+      FileTime time = FileTime.fromMillis(1000);
+      Files.setLastModifiedTime(unchanged, time);
+      assertEquals(Action.UNCHANGED, optimizer.optimizeFile(unchanged, unchanged).getAction());
+      assertEquals(time, Files.getLastModifiedTime(unchanged));
+      assertEquals(Action.OPTIMIZED, optimizer.optimizeFile(optimized, optimized).getAction());
+      assertArrayEquals(this.remover.optimize(read(ExampleClass.class)), Files.readAllBytes(optimized));
+    } finally {
+      delete(source);
+      delete(target);
+    }
+  }
+
+  @Test
+  public void concurrentResultIsSameAsSequentialResult() throws IOException {
+    Path source = createTree();
+    for (int i = 0; i < 50; i++) {
+      Path dir = Files.createDirectories(source.resolve("p" + i));
+      Files.write(dir.resolve("ExampleClass.class"), read(ExampleClass.class));
+    }
+    Path expected = Files.createTempDirectory("expected");
+    Path actual = Files.createTempDirectory("actual");
+    try {
+      List<Result> results = new DirectoryOptimizer(this.remover).optimize(source, expected);
+      assertEquals(results.toString(),
+          new DirectoryOptimizer(this.remover).setThreads(4).optimize(source, actual).toString());
+      for (Result result : results) {
+        assertArrayEquals(Files.readAllBytes(expected.resolve(result.getPath())),
+            Files.readAllBytes(actual.resolve(result.getPath())));
+      }
+    } finally {
+      delete(source);
+      delete(expected);
+      delete(actual);
+    }
+  }
+
+  @Test
+  public void failureNamesTheFile() throws IOException {
+    Path directory = createTree();
+    Path broken = directory.resolve("a/Broken.class");
+    Files.write(broken, RESOURCE);
+    try {
+      for (int threads = 1; threads <= 4; threads *= 4) {
+        DirectoryOptimizer optimizer = new DirectoryOptimizer(this.remover).setThreads(threads);
+        IOException e = assertThrows(IOException.class, () -> optimizer.optimize(directory));
+        assertTrue(e.getMessage().contains(broken.toString()), e.getMessage());
+      }
+      try (Stream<Path> paths = Files.walk(directory)) {
+        assertFalse(paths.anyMatch(p -> p.toString().endsWith(".tmp")));
+      }
+    } finally {
+      delete(directory);
+    }
+  }
+
+  private static Path createTree() throws IOException {
+    Path result = Files.createTempDirectory("classes");
+    Files.write(Files.createDirectories(result.resolve(Paths.get("a", "b")))
+        .resolve("ExampleClass.class"), read(ExampleClass.class));
+    Files.write(Files.createDirectories(result.resolve(Paths.get("a", "c")))
+        .resolve("ExampleRecord.class"), read(ExampleRecord.class));
+    Files.write(Files.createDirectories(result.resolve("META-INF"))
+        .resolve("resource.txt"), RESOURCE);
+    return result;
+  }
+
+  private static List<String> toStrings(List<Result> results) {
+    return results.stream()
+        .map(r -> r.getPath().toString().replace('\\', '/') + ":" + r.getAction())
+        .collect(Collectors.toList());
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  private static byte[] read(Class<?> clazz) throws IOException {
+    try (InputStream is = classAsStream(clazz)) {
+      return is.readAllBytes();
+    }
+  }
+
+}
@@ -1,22 +1,44 @@
 package org.dyndns.fichtner.purgeannotationrefs.testcode;
 
 import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover.RewriteMode;
 import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan;
 import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom;
 import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleClass;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleRecord;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.util.ReferenceRemover;
 import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Type;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.*;
 import static org.dyndns.fichtner.purgeannotationrefs.testcode.TestUtils.count;
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.classAsStream;
 import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.removeAnno;
 import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.jasmin.JasminUtil.classToJasmin;
 import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.jasmin.JasminUtil.streamToJasmin;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class TestExampleClass {
@@ -76,6 +98,124 @@ public class TestExampleClass {
     assertDoesNotThrow(() -> removeOnlyType(RECORD_COMPONENTS));
   }
 
+  @Test
+  public void classWithoutMatchingAnnotationIsCopiedUnchanged() throws IOException {
+    try (InputStream is = classAsStream(ExampleClass.class)) {
+      byte[] original = is.readAllBytes();
+      assertArrayEquals(original, removeAnno(ExampleClass.class,
+          new AnnotationReferenceRemover().remove(new StringMatcher("com.example.Unused"))));
+      assertArrayEquals(original, removeAnno(ExampleClass.class,
+          new AnnotationReferenceRemover().removeFrom(RECORD_COMPONENTS, new StringMatcher(annoClazz.getName()))));
+      assertSame(original, new AnnotationReferenceRemover().remove(new StringMatcher("com.example.Unused")).optimize(original));
+      ByteBuffer buffer = ByteBuffer.wrap(original);
+      assertSame(buffer, new AnnotationReferenceRemover().remove(new StringMatcher("com.example.Unused")).optimize(buffer));
+    }
+  }
+
+  @Test
+  public void compactingDropsConstantsOfRemovedAnnotations() throws IOException {
+    String descriptor = Type.getDescriptor(annoClazz);
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover().remove(new StringMatcher(annoClazz.getName()));
+    assertTrue(constants(removeAnno(ExampleClass.class, remover)).contains(descriptor));
+    byte[] compacted = removeAnno(ExampleClass.class, remover.setCompactConstantPool(true));
+    assertFalse(constants(compacted).contains(descriptor));
+    assertFalse(constants(compacted).contains(PARAMETERS.name()));
+    assertAnnoCountIs(0, streamToJasmin(new ByteArrayInputStream(compacted)).split("(\\r\\n|\\r|\\n)"));
+  }
+
+  @Test
+  public void planCanBeSharedBetweenThreads() throws Exception {
+    byte[] original;
+    try (InputStream is = classAsStream(ExampleClass.class)) {
+      original = is.readAllBytes();
+    }
+    RemovalPlan plan = RemovalPlan.builder().remove(new StringMatcher(annoClazz.getName())).build();
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(plan);
+    byte[] expected = remover.optimize(original);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<byte[]>> results = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        results.add(executor.submit(() -> remover.optimize(original)));
+      }
+      for (Future<byte[]> result : results) {
+        assertArrayEquals(expected, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThrows(IllegalStateException.class, () -> remover.setCompactConstantPool(true));
+  }
+
+  @Test
+  public void fusedVisitorRemovesAsSeparateVisitorsDid() throws IOException {
+    for (Class<?> clazz : Arrays.asList(ExampleClass.class, ExampleRecord.class)) {
+      byte[] original;
+      try (InputStream is = classAsStream(clazz)) {
+        original = is.readAllBytes();
+      }
+      for (RemoveFrom removeFrom : RemoveFrom.values()) {
+        AnnotationReferenceRemover remover = new AnnotationReferenceRemover()
+            .removeFrom(removeFrom, new StringMatcher(annoClazz.getName()));
+        ReferenceRemover reference = new ReferenceRemover()
+            .removeFrom(removeFrom, new StringMatcher(annoClazz.getName()));
+        assertSameResult(clazz, original, remover, reference, removeFrom + " of " + clazz);
+      }
+      AnnotationReferenceRemover remover = new AnnotationReferenceRemover()
+          .removeFrom(METHODS, new StringMatcher(annoClazz.getName()))
+          .removeFrom(PARAMETERS, new StringMatcher(annoClazz.getName()))
+          .removeFrom(RECORD_COMPONENTS, new StringMatcher(MyRecordAnno.class.getName()))
+          .removeFrom(TYPES, new StringMatcher(MyRecordAnno.class.getName()));
+      ReferenceRemover reference = new ReferenceRemover()
+          .removeFrom(METHODS, new StringMatcher(annoClazz.getName()))
+          .removeFrom(PARAMETERS, new StringMatcher(annoClazz.getName()))
+          .removeFrom(RECORD_COMPONENTS, new StringMatcher(MyRecordAnno.class.getName()))
+          .removeFrom(TYPES, new StringMatcher(MyRecordAnno.class.getName()));
+      assertSameResult(clazz, original, remover, reference, "mixed of " + clazz);
+    }
+  }
+
+  @Test
+  public void copyThroughWritesTheSameClassAsRewriting() throws IOException {
+    for (Class<?> clazz : Arrays.asList(ExampleClass.class, ExampleRecord.class)) {
+      byte[] original;
+      try (InputStream is = classAsStream(clazz)) {
+        original = is.readAllBytes();
+      }
+      for (RemoveFrom removeFrom : RemoveFrom.values()) {
+        for (boolean compact : new boolean[]{false, true}) {
+          AnnotationReferenceRemover remover = new AnnotationReferenceRemover()
+              .removeFrom(removeFrom, new StringMatcher(annoClazz.getName()))
+              .removeFrom(removeFrom, new StringMatcher(MyRecordAnno.class.getName()))
+              .setCompactConstantPool(compact);
+          ReferenceRemover reference = new ReferenceRemover()
+              .removeFrom(removeFrom, new StringMatcher(annoClazz.getName()))
+              .removeFrom(removeFrom, new StringMatcher(MyRecordAnno.class.getName()));
+          // the constant pools differ in order and size, the classes' content must not
+          assertArrayEquals(normalize(reference.optimize(original, 0)), normalize(removeAnno(clazz, remover)),
+              removeFrom + " of " + clazz + (compact ? " compacted" : ""));
+        }
+      }
+    }
+  }
+
+  private static byte[] normalize(byte[] classFile) {
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    new ClassReader(classFile).accept(classWriter, 0);
+    return classWriter.toByteArray();
+  }
+
+  private static void assertSameResult(Class<?> clazz, byte[] original, AnnotationReferenceRemover remover,
+                                       ReferenceRemover reference, String message) throws IOException {
+    // a rewrite mode forces a complete rewrite, just as the separate visitors did
+    remover.setRewriteMode(EnumSet.of(RewriteMode.EXPAND_FRAMES));
+    assertArrayEquals(reference.optimize(original, ClassReader.EXPAND_FRAMES), removeAnno(clazz, remover), message);
+  }
+
+  private static String constants(byte[] classFile) {
+    return new String(classFile, StandardCharsets.ISO_8859_1);
+  }
+
   private void removeOnlyType(RemoveFrom removeFrom) throws IOException {
     try (ByteArrayInputStream is = new ByteArrayInputStream(removeAnno(
         ExampleClass.class,
@@ -0,0 +1,191 @@
+package org.dyndns.fichtner.purgeannotationrefs.testcode;
+
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationAttributeStripper;
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover.RewriteMode;
+import org.dyndns.fichtner.purgeannotationrefs.DescriptorMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.GlobMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.RegExpMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan;
+import org.dyndns.fichtner.purgeannotationrefs.Util;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleClass;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.util.ReferenceRemover;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.FIELDS;
+import static org.dyndns.fichtner.purgeannotationrefs.RemoveFrom.METHODS;
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.TestUtils.count;
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.classAsStream;
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.removeAnno;
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.jasmin.JasminUtil.streamToJasmin;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMatcher {
+
+  private static final String DESC = Type.getDescriptor(MyAnno.class);
+
+  @Test
+  public void globMatchesPackageMembers() {
+    GlobMatcher matcher = new GlobMatcher("org.dyndns.fichtner.purgeannotationrefs.testcode.*");
+    assertTrue(matcher.test(MyAnno.class.getName()));
+    assertTrue(matcher.matchesDescriptor(DESC));
+    assertFalse(matcher.test(ExampleClass.class.getName()));
+  }
+
+  @Test
+  public void doubleStarGlobMatchesSubpackages() {
+    GlobMatcher matcher = new GlobMatcher("org.dyndns.**");
+    assertTrue(matcher.test(MyAnno.class.getName()));
+    assertTrue(matcher.matchesDescriptor(DESC));
+    assertFalse(matcher.test("org.dyndnsx.Foo"));
+  }
+
+  @Test
+  public void emptyGlobMatchesNothing() throws IOException {
+    GlobMatcher matcher = new GlobMatcher("");
+    assertFalse(matcher.test(MyAnno.class.getName()));
+    assertFalse(matcher.matchesDescriptor(DESC));
+    assertEquals(5, annotationsLeft(matcher));
+  }
+
+  @Test
+  public void globMatchesPathsBySeparator() {
+    GlobMatcher matcher = new GlobMatcher("META-INF/*.SF", '/');
+    assertTrue(matcher.test("META-INF/A.SF"));
+    assertFalse(matcher.test("META-INF/a/A.SF"));
+    assertFalse(matcher.test("META-INF/ASF"));
+    assertTrue(new GlobMatcher("**/*.pn?", '/').test("a/b.c/d.png"));
+    assertFalse(new GlobMatcher("*.png", '/').test("a/d.png"));
+  }
+
+  @Test
+  public void descriptorMatchingEqualsClassnameMatching() {
+    assertTrue(new StringMatcher(MyAnno.class.getName()).matchesDescriptor(DESC));
+    assertFalse(new StringMatcher(MyAnno.class.getSimpleName()).matchesDescriptor(DESC));
+    assertTrue(new RegExpMatcher(Pattern.compile(".*\\.My.*")).matchesDescriptor(DESC));
+    assertFalse(new RegExpMatcher(Pattern.compile(".*/My.*")).matchesDescriptor(DESC));
+  }
+
+  @Test
+  public void descriptorMatchingEqualsClassnameMatchingForAllMatchers() {
+    List<Predicate<String>> matchers = Arrays.asList(
+        new StringMatcher("com.foo.Bar"), new StringMatcher("com.foo.Bar$Inner"), new StringMatcher("Bar"),
+        new GlobMatcher("com.foo.*"), new GlobMatcher("com.foo.**"), new GlobMatcher("com.foo?ar.*"),
+        new GlobMatcher("*"), new GlobMatcher("com.*.Bar"), new GlobMatcher("com.foo.Bar$*"),
+        new RegExpMatcher(Pattern.compile("com\\.foo\\..*")), new RegExpMatcher(Pattern.compile(".*\\$Inner")),
+        new RegExpMatcher(Pattern.compile("(?i)COM.FOO.BAR")), new RegExpMatcher(Pattern.compile("(com)\\.\\w+\\.\\1.*")),
+        name -> name.startsWith("com.foo.") && name.endsWith("r"));
+    List<String> descs = Arrays.asList("Lcom/foo/Bar;", "Lcom/foo/Bar$Inner;", "LBar;", "Lcom/foo/sub/Bar;",
+        "Lcom/foobar/Baz;", "Lcom/fooBar/com/X;", "Lcom/zoo/Bar;", DESC);
+    for (Predicate<String> matcher : matchers) {
+      DescriptorMatcher descriptorMatcher = Util.toDescriptorMatcher(matcher);
+      for (String desc : descs) {
+        assertEquals(matcher.test(Util.typeToClassname(desc)), descriptorMatcher.matchesDescriptor(desc),
+            matcher + " " + desc);
+      }
+    }
+  }
+
+  @Test
+  public void removeByDescriptorAsByClassname() throws IOException {
+    byte[] original;
+    try (InputStream is = classAsStream(ExampleClass.class)) {
+      original = is.readAllBytes();
+    }
+    List<Predicate<String>> matchers = Arrays.asList(new StringMatcher(MyAnno.class.getName()),
+        new GlobMatcher("org.dyndns.**"), new GlobMatcher("org.dyndns.fichtner.purgeannotationrefs.testcode.My?nno"),
+        new RegExpMatcher(Pattern.compile(".*\\.MyAnno")), new RegExpMatcher(Pattern.compile("org/.*")));
+    for (Predicate<String> matcher : matchers) {
+      AnnotationReferenceRemover remover = new AnnotationReferenceRemover().removeFrom(METHODS, matcher)
+          .removeFrom(FIELDS, matcher);
+      remover.setRewriteMode(EnumSet.of(RewriteMode.EXPAND_FRAMES));
+      ReferenceRemover reference = new ReferenceRemover().removeFrom(METHODS, matcher).removeFrom(FIELDS, matcher);
+      assertArrayEquals(reference.optimize(original, ClassReader.EXPAND_FRAMES),
+          removeAnno(ExampleClass.class, remover), matcher.toString());
+    }
+  }
+
+  @Test
+  public void removeByPackageGlob() throws IOException {
+    assertEquals(0, annotationsLeft(new GlobMatcher("org.dyndns.fichtner.purgeannotationrefs.testcode.*")));
+    assertEquals(0, annotationsLeft(new GlobMatcher("org.dyndns.**")));
+    assertEquals(5, annotationsLeft(new GlobMatcher("org.dyndns.*")));
+    assertEquals(5, annotationsLeft(new GlobMatcher("org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.**")));
+  }
+
+  @Test
+  public void removeByCombinedRegExps() throws IOException {
+    assertEquals(0, annotationsLeft(new RegExpMatcher(Pattern.compile("foo")),
+        new RegExpMatcher(Pattern.compile(".*\\.MyAnno")), new RegExpMatcher(Pattern.compile("bar"))));
+  }
+
+  @Test
+  public void selectorsOnlyApplyToTheirElements() throws IOException {
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover()
+        .removeFrom(FIELDS, new GlobMatcher("org.dyndns.**"))
+        .removeFrom(FIELDS, new StringMatcher(MyAnno.class.getName()));
+    assertEquals(4, annotationsLeft(remover));
+  }
+
+  @Test
+  public void decisionsAreCachedPerDescriptor() throws IOException {
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover()
+        .remove(new RegExpMatcher(Pattern.compile(".*\\.MyAnno")));
+    removeAnno(ExampleClass.class, remover);
+    long misses = remover.getCacheMisses();
+    assertTrue(misses > 0);
+    removeAnno(ExampleClass.class, remover);
+    assertEquals(misses, remover.getCacheMisses());
+    assertTrue(remover.getCacheHits() >= 5);
+  }
+
+  @Test
+  public void onlyAnnotationTypesAreLookedUp() throws IOException {
+    Set<String> asked = new HashSet<>();
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(name -> {
+          asked.add(name);
+          return false;
+        }).build());
+    byte[] classFile;
+    try (InputStream is = classAsStream(ExampleClass.class)) {
+      classFile = is.readAllBytes();
+    }
+    // ExampleClass references e.g. java.lang.String as well but is annotated with MyAnno only
+    assertSame(classFile, remover.optimize(classFile));
+    assertSame(classFile, new AnnotationAttributeStripper(remover).optimize(classFile));
+    assertEquals(Set.of(MyAnno.class.getName()), asked);
+    assertEquals(1, remover.getCacheMisses());
+  }
+
+  @SafeVarargs
+  private static int annotationsLeft(Predicate<String>... matchers) throws IOException {
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover();
+    for (Predicate<String> matcher : matchers) {
+      remover.remove(matcher);
+    }
+    return annotationsLeft(remover);
+  }
+
+  private static int annotationsLeft(AnnotationReferenceRemover remover) throws IOException {
+    try (ByteArrayInputStream is = new ByteArrayInputStream(removeAnno(ExampleClass.class, remover))) {
+      return count(streamToJasmin(is).split("(\\r\\n|\\r|\\n)"),
+          new StringMatcher(".annotation visible " + DESC));
+    }
+  }
+
+}
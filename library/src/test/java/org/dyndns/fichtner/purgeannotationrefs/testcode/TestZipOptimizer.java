@@ -0,0 +1,689 @@
+package org.dyndns.fichtner.purgeannotationrefs.testcode;
+
+import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.ClassOptimizer;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.CompressionPolicy;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.TimingProfile;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.ZipArchive;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.ZipArchiveWriter;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.ZipOptimizer;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleClass;
+import org.dyndns.fichtner.purgeannotationrefs.testcode.cuts.ExampleRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.dyndns.fichtner.purgeannotationrefs.testcode.util.TestHelper.classAsStream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestZipOptimizer {
+
+  private static final byte[] STORED_DATA = "stored as it is".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void concurrentResultIsSameAsSequentialResult() throws IOException {
+    byte[] zip = createZip();
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] expected = optimize(new ZipOptimizer(remover), zip);
+    for (int threads = 2; threads <= 8; threads *= 2) {
+      assertArrayEquals(expected, optimize(new ZipOptimizer(remover).setThreads(threads), zip));
+    }
+  }
+
+  @Test
+  public void bytesInFlightAreLimited() throws IOException {
+    byte[] zip = createZip();
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    ZipOptimizer zipOptimizer = new ZipOptimizer(new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build())) {
+      @Override
+      protected byte[] transformClass(String name, byte[] bytes) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+          return super.transformClass(name, bytes);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    }.setThreads(4);
+    byte[] expected = optimize(zipOptimizer, zip);
+    // entries larger than the budget are processed one after another
+    maxInFlight.set(0);
+    assertArrayEquals(expected, optimize(zipOptimizer.setMaxBytesInFlight(1), zip));
+    assertEquals(1, maxInFlight.get());
+    assertArrayEquals(expected, optimize(zipOptimizer.setMaxBytesInFlight(10000), zip));
+  }
+
+  @Test
+  public void entriesLargerThanTheBudgetAreStreamed() throws IOException {
+    Random random = new Random(11);
+    byte[] large = new byte[200000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) ('a' + random.nextInt(8));
+    }
+    byte[] zip = concat(concat(createZip(), createZip(ZipEntry.STORED, "r/stored.bin", large)),
+        createZip(ZipEntry.DEFLATED, "r/deflated.bin", large));
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] expected = optimize(new ZipOptimizer(remover), zip);
+    for (long maxBytesInFlight : new long[]{1000, large.length - 1, large.length}) {
+      assertArrayEquals(expected, optimize(new ZipOptimizer(remover).setThreads(4)
+          .setMaxBytesInFlight(maxBytesInFlight), zip));
+    }
+  }
+
+  @Test
+  public void archiveResultIsSameAsStreamResult() throws IOException {
+    byte[] zip = createZip();
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] expected = optimize(new ZipOptimizer(remover), zip);
+    Path file = Files.createTempFile("archive", ".zip");
+    try {
+      Files.write(file, zip);
+      for (int threads = 1; threads <= 4; threads *= 2) {
+        try (ZipArchive archive = ZipArchive.open(file)) {
+          assertArrayEquals(expected, optimize(new ZipOptimizer(remover).setThreads(threads), archive));
+        }
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void unmodifiedEntriesAreCopiedRaw() throws IOException {
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(createZip()));
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    for (int threads = 1; threads <= 4; threads *= 2) {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+        new ZipOptimizer(remover).setThreads(threads).optimize(source, output);
+      }
+      ZipArchive result = ZipArchive.wrap(ByteBuffer.wrap(os.toByteArray()));
+      assertEquals(source.entries().size(), result.entries().size());
+      for (ZipArchive.Entry entry : source.entries()) {
+        ZipArchive.Entry written = result.getEntry(entry.getName());
+        byte[] data = source.data(entry);
+        if (entry.getName().endsWith(".class")) {
+          assertArrayEquals(remover.optimize(data), result.data(written));
+        } else {
+          assertEquals(source.rawData(entry), result.rawData(written));
+          assertArrayEquals(data, result.data(written));
+        }
+      }
+      // readable by the JDK as well
+      try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(os.toByteArray()))) {
+        int count = 0;
+        while (input.getNextEntry() != null) {
+          input.readAllBytes();
+          count++;
+        }
+        assertEquals(source.entries().size(), count);
+      }
+    }
+  }
+
+  @Test
+  public void nestedZipsAreRebuilt() throws IOException {
+    byte[] purged = createZip(ZipEntry.STORED, "BOOT-INF/lib/purged.jar", createZip());
+    byte[] untouched = createZip(ZipEntry.DEFLATED, "BOOT-INF/lib/untouched.jar", createZip(ZipEntry.DEFLATED, "a.txt", STORED_DATA));
+    byte[] zip = concat(purged, untouched);
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] sequential = optimize(new ZipOptimizer(remover), zip);
+    assertArrayEquals(sequential, optimize(new ZipOptimizer(remover).setThreads(4), zip));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+      new ZipOptimizer(remover).setThreads(4).optimize(ZipArchive.wrap(ByteBuffer.wrap(zip)), output);
+    }
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip));
+    for (byte[] result : new byte[][]{sequential, os.toByteArray()}) {
+      ZipArchive archive = ZipArchive.wrap(ByteBuffer.wrap(result));
+      ZipArchive.Entry nested = archive.getEntry("BOOT-INF/lib/purged.jar");
+      assertEquals(ZipEntry.STORED, nested.getMethod());
+      ZipArchive nestedArchive = ZipArchive.wrap(ByteBuffer.wrap(archive.data(nested)));
+      byte[] original = read(ExampleClass.class);
+      assertArrayEquals(remover.optimize(original), nestedArchive.data(nestedArchive.getEntry("a/Example0.class")));
+      assertArrayEquals(STORED_DATA, nestedArchive.data(nestedArchive.getEntry("a/stored.txt")));
+      ZipArchive.Entry untouchedEntry = archive.getEntry("BOOT-INF/lib/untouched.jar");
+      assertArrayEquals(source.data(source.getEntry("BOOT-INF/lib/untouched.jar")), archive.data(untouchedEntry));
+    }
+    ZipArchive result = ZipArchive.wrap(ByteBuffer.wrap(os.toByteArray()));
+    assertEquals(source.rawData(source.getEntry("BOOT-INF/lib/untouched.jar")),
+        result.rawData(result.getEntry("BOOT-INF/lib/untouched.jar")));
+  }
+
+  @Test
+  public void largeEntriesAreCompressedBlockByBlock() throws IOException {
+    Random random = new Random(7);
+    byte[] large = new byte[5 * 1024 * 1024 + 17];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) ('a' + random.nextInt(8));
+    }
+    byte[] nested = concat(createZip(), createZip(ZipEntry.DEFLATED, "large.bin", large));
+    byte[] zip = createZip(ZipEntry.DEFLATED, "WEB-INF/lib/large.jar", nested);
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] expected = null;
+    for (int threads = 1; threads <= 4; threads *= 2) {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+        new ZipOptimizer(remover).setThreads(threads).optimize(ZipArchive.wrap(ByteBuffer.wrap(zip)), output);
+      }
+      if (expected == null) {
+        expected = os.toByteArray();
+      } else {
+        assertArrayEquals(expected, os.toByteArray());
+      }
+    }
+    try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(expected))) {
+      assertEquals("WEB-INF/lib/large.jar", input.getNextEntry().getName());
+      try (ZipInputStream nestedInput = new ZipInputStream(new ByteArrayInputStream(input.readAllBytes()))) {
+        ZipEntry entry;
+        byte[] data = null;
+        while ((entry = nestedInput.getNextEntry()) != null) {
+          byte[] bytes = nestedInput.readAllBytes();
+          if (entry.getName().equals("large.bin")) {
+            data = bytes;
+          }
+        }
+        assertArrayEquals(large, data);
+      }
+    }
+  }
+
+  @Test
+  public void archiveKnowsSizesBeforeReading() throws IOException {
+    ZipArchive archive = ZipArchive.wrap(ByteBuffer.wrap(createZip()));
+    ZipArchive.Entry stored = archive.getEntry("a/stored.txt");
+    assertEquals(ZipEntry.STORED, stored.getMethod());
+    assertEquals(STORED_DATA.length, stored.getSize());
+    assertEquals(STORED_DATA.length, stored.getCompressedSize());
+    assertArrayEquals(STORED_DATA, archive.data(stored));
+    ZipArchive.Entry clazz = archive.getEntry("a/Example0.class");
+    byte[] expected = read(ExampleClass.class);
+    assertEquals(ZipEntry.DEFLATED, clazz.getMethod());
+    assertEquals(expected.length, clazz.getSize());
+    assertEquals(clazz.getCompressedSize(), archive.rawData(clazz).remaining());
+    assertArrayEquals(expected, archive.data(clazz));
+    assertEquals(102, archive.entries().size());
+    assertNull(archive.getEntry("a/missing.txt"));
+  }
+
+  @Test
+  public void compressionPolicyDecidesMethodPerEntry() throws IOException {
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(createZip()));
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    CompressionPolicy policy = new CompressionPolicy()
+        .store("**.class")
+        .deflate("a/*.txt", 10000, Deflater.BEST_COMPRESSION);
+    for (int threads = 1; threads <= 4; threads *= 2) {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+        new ZipOptimizer(remover).setThreads(threads).setCompressionPolicy(policy).optimize(source, output);
+      }
+      ZipArchive result = ZipArchive.wrap(ByteBuffer.wrap(os.toByteArray()));
+      byte[] viaStream = optimize(new ZipOptimizer(remover).setThreads(threads).setCompressionPolicy(policy),
+          os.toByteArray());
+      ZipArchive streamResult = ZipArchive.wrap(ByteBuffer.wrap(viaStream));
+      for (ZipArchive.Entry entry : source.entries()) {
+        for (ZipArchive archive : new ZipArchive[]{result, streamResult}) {
+          ZipArchive.Entry written = archive.getEntry(entry.getName());
+          String name = entry.getName();
+          byte[] data = source.data(entry);
+          if (name.endsWith(".class")) {
+            assertEquals(ZipEntry.STORED, written.getMethod());
+            assertArrayEquals(remover.optimize(data), archive.data(written));
+          } else {
+            assertEquals(entry.getMethod(), written.getMethod());
+            assertArrayEquals(data, archive.data(written));
+          }
+        }
+        ZipArchive.Entry written = result.getEntry(entry.getName());
+        if (entry.getName().endsWith(".txt") && entry.getSize() < 10000) {
+          assertEquals(source.rawData(entry), result.rawData(written));
+        }
+      }
+    }
+    // fast compression does not deflate entries again
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+      new ZipOptimizer(remover).setCompressionPolicy(new CompressionPolicy()
+          .deflate("**", Deflater.BEST_COMPRESSION).setFast(true)).optimize(source, output);
+    }
+    ZipArchive result = ZipArchive.wrap(ByteBuffer.wrap(os.toByteArray()));
+    for (ZipArchive.Entry entry : source.entries()) {
+      if (entry.isDirectory()) {
+        continue;
+      }
+      ZipArchive.Entry written = result.getEntry(entry.getName());
+      assertEquals(ZipEntry.DEFLATED, written.getMethod());
+      if (entry.getName().endsWith(".txt") && entry.getMethod() == ZipEntry.DEFLATED) {
+        assertEquals(source.rawData(entry), result.rawData(written));
+      }
+    }
+  }
+
+  @Test
+  public void inPlaceUpdateAppendsModifiedEntries() throws IOException {
+    byte[] zip = createZip();
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    Path file = Files.createTempFile("archive", ".zip");
+    try {
+      for (int threads = 1; threads <= 4; threads *= 2) {
+        Files.write(file, zip);
+        assertTrue(new ZipOptimizer(remover).setThreads(threads).optimizeInPlace(file));
+        byte[] updated = Files.readAllBytes(file);
+        // the original zip file is left as it is
+        assertArrayEquals(zip, Arrays.copyOf(updated, zip.length));
+        ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip));
+        try (ZipFile result = new ZipFile(file.toFile())) {
+          assertEquals(source.entries().size(), result.size());
+          for (ZipArchive.Entry entry : source.entries()) {
+            byte[] data = source.data(entry);
+            try (InputStream is = result.getInputStream(result.getEntry(entry.getName()))) {
+              assertArrayEquals(entry.getName().endsWith(".class") ? remover.optimize(data) : data, is.readAllBytes());
+            }
+          }
+        }
+        // nothing left to modify
+        assertFalse(new ZipOptimizer(remover).setThreads(threads).optimizeInPlace(file));
+        assertArrayEquals(updated, Files.readAllBytes(file));
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r--r--");
+        if (posix) {
+          Files.setPosixFilePermissions(file, permissions);
+        }
+        ZipArchiveWriter.compact(file);
+        assertTrue(Files.size(file) < updated.length);
+        if (posix) {
+          assertEquals(permissions, Files.getPosixFilePermissions(file));
+        }
+        assertArrayEquals(optimize(new ZipOptimizer(remover), zip), optimize(new ZipOptimizer(remover),
+            Files.readAllBytes(file)));
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void failedInPlaceUpdateKeepsFile() throws IOException {
+    byte[] zip = concat(createZip(), createZip(ZipEntry.DEFLATED, "z/Broken.class",
+        "no class".getBytes(StandardCharsets.UTF_8)));
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    Path directory = Files.createTempDirectory("archives");
+    Path file = directory.resolve("archive.zip");
+    try {
+      for (int threads = 1; threads <= 4; threads *= 2) {
+        Files.write(file, zip);
+        ZipOptimizer optimizer = new ZipOptimizer(remover).setThreads(threads);
+        assertThrows(RuntimeException.class, () -> optimizer.optimizeInPlace(file));
+        assertArrayEquals(zip, Files.readAllBytes(file));
+        try (Stream<Path> files = Files.list(directory)) {
+          assertEquals(1, files.count());
+        }
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void prefixIsKept() throws IOException {
+    byte[] zip = createZip();
+    byte[] prefix = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8);
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] expected = optimize(new ZipOptimizer(remover), zip);
+    // offsets relative to the zip file (like data simply prepended) and including the prefix
+    ByteArrayOutputStream relative = new ByteArrayOutputStream();
+    relative.write(prefix);
+    relative.write(zip);
+    ByteArrayOutputStream absolute = new ByteArrayOutputStream();
+    absolute.write(prefix);
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip));
+    try (ZipArchiveWriter output = new ZipArchiveWriter(Channels.newChannel(absolute), prefix.length)) {
+      for (ZipArchive.Entry entry : source.entries()) {
+        output.copy(source, entry);
+      }
+    }
+    Path file = Files.createTempFile("archive", ".jar");
+    try {
+      for (byte[] prefixed : new byte[][]{relative.toByteArray(), absolute.toByteArray()}) {
+        ZipArchive archive = ZipArchive.wrap(ByteBuffer.wrap(prefixed));
+        assertEquals(ByteBuffer.wrap(prefix), archive.prefix());
+        assertArrayEquals(expected, optimize(new ZipOptimizer(remover), archive));
+        Files.write(file, prefixed);
+        assertTrue(new ZipOptimizer(remover).optimizeInPlace(file));
+        assertReadable(file, prefix, expected, remover);
+        ZipArchiveWriter.compact(file);
+        assertReadable(file, prefix, expected, remover);
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static void assertReadable(Path file, byte[] prefix, byte[] expected,
+                                     AnnotationReferenceRemover remover) throws IOException {
+    byte[] bytes = Files.readAllBytes(file);
+    assertArrayEquals(prefix, Arrays.copyOf(bytes, prefix.length));
+    try (ZipFile zipFile = new ZipFile(file.toFile())) {
+      assertEquals(ZipArchive.wrap(ByteBuffer.wrap(expected)).entries().size(), zipFile.size());
+    }
+    try (ZipArchive archive = ZipArchive.open(file)) {
+      assertArrayEquals(expected, optimize(new ZipOptimizer(remover), archive));
+    }
+  }
+
+  @Test
+  public void filesLargerThan2GbAreReadInWindows() throws IOException {
+    byte[] zip = createZip();
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    Path directory = Files.createTempDirectory("large");
+    Path file = directory.resolve("large.zip");
+    try {
+      // a sparse file, the zip file crosses the border of two windows
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+          StandardOpenOption.SPARSE)) {
+        channel.write(ByteBuffer.wrap(zip), 35L * 64 * 1024 * 1024 - zip.length / 2);
+      }
+      for (int threads = 1; threads <= 4; threads *= 2) {
+        try (ZipArchive archive = ZipArchive.open(file)) {
+          assertArrayEquals(optimize(new ZipOptimizer(remover), zip),
+              optimize(new ZipOptimizer(remover).setThreads(threads), archive));
+        }
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void duplicateEntriesAreDropped() throws IOException {
+    byte[] zip = createZip();
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip));
+    ByteArrayOutputStream duplicates = new ByteArrayOutputStream();
+    try (ZipArchiveWriter output = new ZipArchiveWriter(duplicates)) {
+      for (ZipArchive.Entry entry : source.entries()) {
+        output.copy(source, entry);
+      }
+      for (ZipArchive.Entry entry : source.entries()) {
+        output.write(source, entry, STORED_DATA);
+      }
+    }
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    byte[] expected = optimize(new ZipOptimizer(remover), zip);
+    for (int threads = 1; threads <= 4; threads *= 2) {
+      assertArrayEquals(expected, optimize(new ZipOptimizer(remover).setThreads(threads), duplicates.toByteArray()));
+    }
+  }
+
+  @Test
+  public void namesOfTheSameHashCodeAreNoDuplicates() throws IOException {
+    // all names share the same hash code
+    String[] names = {"r/AaAa", "r/AaBB", "r/BBAa", "r/BBBB"};
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream output = new ZipOutputStream(zip)) {
+      for (String name : names) {
+        output.putNextEntry(new ZipEntry(name));
+        output.write(name.getBytes(StandardCharsets.UTF_8));
+        output.closeEntry();
+      }
+    }
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip.toByteArray()));
+    ByteArrayOutputStream duplicates = new ByteArrayOutputStream();
+    try (ZipArchiveWriter output = new ZipArchiveWriter(duplicates)) {
+      for (ZipArchive.Entry entry : source.entries()) {
+        output.copy(source, entry);
+        output.write(source, entry, STORED_DATA);
+      }
+    }
+    ClassOptimizer none = (input, output) -> input.transferTo(output);
+    for (int threads = 1; threads <= 4; threads *= 2) {
+      byte[] result = optimize(new ZipOptimizer(none).setThreads(threads), duplicates.toByteArray());
+      try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(result))) {
+        for (String name : names) {
+          assertEquals(name, input.getNextEntry().getName());
+          assertArrayEquals(name.getBytes(StandardCharsets.UTF_8), input.readAllBytes());
+        }
+        assertNull(input.getNextEntry());
+      }
+    }
+  }
+
+  @Test
+  public void zip64ArchivesAreReadAndWritten() throws IOException {
+    int count = 0xFFFF + 100;
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream output = new ZipOutputStream(zip)) {
+      output.putNextEntry(new ZipEntry("a/Example.class"));
+      output.write(read(ExampleClass.class));
+      output.closeEntry();
+      for (int i = 1; i < count; i++) {
+        output.putNextEntry(new ZipEntry("r/" + i + ".txt"));
+        output.write(i);
+        output.closeEntry();
+      }
+    }
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip.toByteArray()));
+    assertEquals(count, source.entries().size());
+    assertTrue(source.isFirst(source.getEntry("r/4711.txt")));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+      new ZipOptimizer(remover).setThreads(4).optimize(source, output);
+    }
+    ZipArchive result = ZipArchive.wrap(ByteBuffer.wrap(os.toByteArray()));
+    assertEquals(count, result.entries().size());
+    assertArrayEquals(remover.optimize(read(ExampleClass.class)), result.data(result.getEntry("a/Example.class")));
+    // readable by the JDK as well
+    Path file = Files.createTempFile("archive", ".zip");
+    try {
+      Files.write(file, os.toByteArray());
+      try (ZipFile zipFile = new ZipFile(file.toFile())) {
+        assertEquals(count, zipFile.size());
+        try (InputStream is = zipFile.getInputStream(zipFile.getEntry("r/4711.txt"))) {
+          assertEquals(4711 & 0xFF, is.read());
+        }
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void scheduledResultIsSameAsSequentialResult() throws IOException {
+    // the largest entry comes last
+    byte[] zip = concat(createZip(), createZip(ZipEntry.DEFLATED, "WEB-INF/lib/last.jar", createZip()));
+    AnnotationReferenceRemover remover = new AnnotationReferenceRemover(RemovalPlan.builder()
+        .remove(new StringMatcher(MyAnno.class.getName())).build());
+    ZipArchive source = ZipArchive.wrap(ByteBuffer.wrap(zip));
+    byte[] expected = optimize(new ZipOptimizer(remover), source);
+    TimingProfile profile = new TimingProfile();
+    for (int threads = 2; threads <= 8; threads *= 2) {
+      assertArrayEquals(expected, optimize(new ZipOptimizer(remover).setThreads(threads)
+          .setTimingProfile(profile), source));
+    }
+    // classes and nested zip files are recorded
+    assertEquals(51, profile.size());
+    assertTrue(profile.estimate("WEB-INF/lib/last.jar", 0) > 0);
+    Path file = Files.createTempFile("profile", ".txt");
+    try {
+      profile.save(file);
+      TimingProfile loaded = TimingProfile.load(file);
+      assertEquals(profile.size(), loaded.size());
+      assertEquals(profile.estimate("a/Example0.class", 0), loaded.estimate("a/Example0.class", 0));
+      assertEquals(profile.estimate("unknown.class", 1000), loaded.estimate("unknown.class", 1000));
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      try (ZipArchiveWriter output = new ZipArchiveWriter(os)) {
+        new ZipOptimizer(remover).setThreads(4).setTimingProfile(loaded).optimize(source, output);
+      }
+      ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+      try (ZipArchiveWriter output = new ZipArchiveWriter(sequential)) {
+        new ZipOptimizer(remover).optimize(source, output);
+      }
+      assertArrayEquals(sequential.toByteArray(), os.toByteArray());
+    } finally {
+      Files.delete(file);
+    }
+    assertEquals(0, TimingProfile.load(file).size());
+  }
+
+  @Test
+  public void failuresOfThreadsArePropagated() throws IOException {
+    byte[] zip = createZip();
+    ZipOptimizer zipOptimizer = new ZipOptimizer(new ClassOptimizer() {
+      @Override
+      public void optimize(InputStream inputStream, OutputStream outputStream) {
+        throw new IllegalStateException("broken");
+      }
+    }).setThreads(4);
+    assertThrows(IllegalStateException.class, () -> optimize(zipOptimizer, zip));
+  }
+
+  private static byte[] optimize(ZipOptimizer zipOptimizer, byte[] zip) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip));
+         ZipOutputStream output = new ZipOutputStream(os)) {
+      zipOptimizer.optimize(input, output);
+    }
+    return os.toByteArray();
+  }
+
+  private static byte[] optimize(ZipOptimizer zipOptimizer, ZipArchive archive) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipOutputStream output = new ZipOutputStream(os)) {
+      zipOptimizer.optimize(archive, output);
+    }
+    return os.toByteArray();
+  }
+
+  private static byte[] createZip() throws IOException {
+    Random random = new Random(42);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipOutputStream output = new ZipOutputStream(os)) {
+      output.putNextEntry(new ZipEntry("META-INF/"));
+      output.closeEntry();
+      for (int i = 0; i < 50; i++) {
+        output.putNextEntry(new ZipEntry("a/Example" + i + ".class"));
+        output.write(read(i % 2 == 0 ? ExampleClass.class : ExampleRecord.class));
+        output.closeEntry();
+        output.putNextEntry(new ZipEntry("a/resource" + i + ".txt"));
+        byte[] resource = new byte[random.nextInt(20000)];
+        for (int j = 0; j < resource.length; j++) {
+          resource[j] = (byte) ('a' + random.nextInt(4));
+        }
+        output.write(resource);
+        output.closeEntry();
+      }
+      ZipEntry stored = new ZipEntry("a/stored.txt");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(STORED_DATA.length);
+      CRC32 crc = new CRC32();
+      crc.update(STORED_DATA);
+      stored.setCrc(crc.getValue());
+      output.putNextEntry(stored);
+      output.write(STORED_DATA);
+      output.closeEntry();
+    }
+    return os.toByteArray();
+  }
+
+  private static byte[] createZip(int method, String name, byte[] data) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipOutputStream output = new ZipOutputStream(os)) {
+      ZipEntry entry = new ZipEntry(name);
+      entry.setMethod(method);
+      if (method == ZipEntry.STORED) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        entry.setSize(data.length);
+      }
+      output.putNextEntry(entry);
+      output.write(data);
+      output.closeEntry();
+    }
+    return os.toByteArray();
+  }
+
+  /**
+   * Returns a zip file holding the entries of both passed zip files.
+   */
+  private static byte[] concat(byte[] zip1, byte[] zip2) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ZipOutputStream output = new ZipOutputStream(os)) {
+      for (byte[] zip : new byte[][]{zip1, zip2}) {
+        try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip))) {
+          ZipEntry entry;
+          while ((entry = input.getNextEntry()) != null) {
+            byte[] data = input.readAllBytes();
+            ZipEntry copy = new ZipEntry(entry.getName());
+            copy.setMethod(entry.getMethod());
+            if (entry.getMethod() == ZipEntry.STORED) {
+              copy.setCrc(entry.getCrc());
+              copy.setSize(data.length);
+            }
+            output.putNextEntry(copy);
+            output.write(data);
+            output.closeEntry();
+          }
+        }
+      }
+    }
+    return os.toByteArray();
+  }
+
+  private static byte[] read(Class<?> clazz) throws IOException {
+    try (InputStream is = classAsStream(clazz)) {
+      return is.readAllBytes();
+    }
+  }
+
+}
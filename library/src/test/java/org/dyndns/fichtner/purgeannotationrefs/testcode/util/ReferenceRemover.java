@@ -0,0 +1,99 @@
+package org.dyndns.fichtner.purgeannotationrefs.testcode.util;
+
+import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.RecordComponentVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Removes annotations the way the library did before the visitors were
+ * fused: every annotation's descriptor is translated into its java classname
+ * and matched separately for the element it is found on, the class is
+ * always written by a new {@link ClassWriter} computing the maxs. The
+ * results of the library are compared to the results of this class.
+ */
+public final class ReferenceRemover {
+
+  private final Map<RemoveFrom, Predicate<String>> matchers = new EnumMap<>(RemoveFrom.class);
+
+  public ReferenceRemover removeFrom(RemoveFrom removeFrom, Predicate<String> matcher) {
+    this.matchers.merge(removeFrom, matcher, Predicate::or);
+    return this;
+  }
+
+  public ReferenceRemover remove(Predicate<String> matcher) {
+    for (RemoveFrom removeFrom : RemoveFrom.values()) {
+      removeFrom(removeFrom, matcher);
+    }
+    return this;
+  }
+
+  public byte[] optimize(byte[] classFile, int parsingOptions) {
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    new ClassReader(classFile).accept(new ClassVisitor(ASM9, classWriter) {
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        return removes(RemoveFrom.TYPES, desc) ? null : super.visitAnnotation(desc, visible);
+      }
+
+      @Override
+      public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        return new FieldVisitor(ASM9, super.visitField(access, name, desc, signature, value)) {
+          @Override
+          public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return removes(RemoveFrom.FIELDS, desc) ? null : super.visitAnnotation(desc, visible);
+          }
+        };
+      }
+
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                       String[] exceptions) {
+        RemoveFrom element = "<init>".equals(name) ? RemoveFrom.CONSTRUCTORS
+            : "<clinit>".equals(name) ? null : RemoveFrom.METHODS;
+        return new MethodVisitor(ASM9, super.visitMethod(access, name, desc, signature, exceptions)) {
+          @Override
+          public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return element != null && removes(element, desc) ? null : super.visitAnnotation(desc, visible);
+          }
+
+          @Override
+          public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+            return removes(RemoveFrom.PARAMETERS, desc) ? null
+                : super.visitParameterAnnotation(parameter, desc, visible);
+          }
+        };
+      }
+
+      @Override
+      public RecordComponentVisitor visitRecordComponent(String name, String desc, String signature) {
+        return new RecordComponentVisitor(ASM9, super.visitRecordComponent(name, desc, signature)) {
+          @Override
+          public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return removes(RemoveFrom.RECORD_COMPONENTS, desc) ? null : super.visitAnnotation(desc, visible);
+          }
+        };
+      }
+
+    }, parsingOptions);
+    return classWriter.toByteArray();
+  }
+
+  private boolean removes(RemoveFrom removeFrom, String desc) {
+    Predicate<String> matcher = this.matchers.get(removeFrom);
+    return matcher != null && matcher.test(Type.getType(desc).getClassName());
+  }
+
+}
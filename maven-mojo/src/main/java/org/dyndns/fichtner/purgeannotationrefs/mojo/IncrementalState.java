@@ -0,0 +1,135 @@
+package org.dyndns.fichtner.purgeannotationrefs.mojo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content hashes of the classes written by the last run plus a fingerprint
+ * of the configuration they have been processed with. A class whose content
+ * still has the hash recorded has not been touched since and does not need
+ * to be processed again. If the fingerprint differs all classes are
+ * processed.
+ * <p>
+ * The first line of the state file is the fingerprint, followed by one line
+ * per class (hash and name separated by a tab) sorted by name.
+ */
+class IncrementalState {
+
+  private static final char SEPARATOR = '\t';
+
+  private final String fingerprint;
+  private final Map<String, String> previous;
+  private final Map<String, String> current = new ConcurrentHashMap<>();
+
+  private IncrementalState(String fingerprint, Map<String, String> previous) {
+    this.fingerprint = fingerprint;
+    this.previous = previous;
+  }
+
+  static IncrementalState load(Path file, String fingerprint) throws IOException {
+    Map<String, String> hashes = new HashMap<>();
+    if (Files.isRegularFile(file)) {
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (!lines.isEmpty() && lines.get(0).equals(fingerprint)) {
+        for (String line : lines.subList(1, lines.size())) {
+          int separator = line.indexOf(SEPARATOR);
+          if (separator > 0) {
+            hashes.put(line.substring(separator + 1), line.substring(0, separator));
+          }
+        }
+      }
+    }
+    return new IncrementalState(fingerprint, hashes);
+  }
+
+  /**
+   * Returns <code>true</code> if there is no usable state of a previous run,
+   * so all classes are processed.
+   */
+  boolean isFullRun() {
+    return previous.isEmpty();
+  }
+
+  /**
+   * Returns <code>true</code> if the class has the content written by the
+   * last run. The class is kept in the state then.
+   */
+  boolean isUpToDate(String name, byte[] content) {
+    String hash = hash(content);
+    if (hash.equals(previous.get(name))) {
+      current.put(name, hash);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records the content a class has been written with.
+   */
+  void processed(String name, byte[] content) {
+    current.put(name, hash(content));
+  }
+
+  void save(Path file) throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write(fingerprint);
+        writer.newLine();
+        for (Map.Entry<String, String> entry : new TreeMap<>(current).entrySet()) {
+          writer.write(entry.getValue() + SEPARATOR + entry.getKey());
+          writer.newLine();
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  static String hash(byte[] content) {
+    return HexFormat.of().formatHex(digest().digest(content));
+  }
+
+  /**
+   * Returns the hash of the passed file or of the names and contents of all
+   * files of the passed directory.
+   */
+  static String hash(Path location) throws IOException {
+    if (!Files.isDirectory(location)) {
+      return hash(Files.readAllBytes(location));
+    }
+    MessageDigest digest = digest();
+    try (Stream<Path> paths = Files.walk(location)) {
+      for (Path path : paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+        digest.update(location.relativize(path).toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(Files.readAllBytes(path));
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
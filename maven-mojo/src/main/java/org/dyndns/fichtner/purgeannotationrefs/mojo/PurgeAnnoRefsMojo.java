@@ -7,10 +7,21 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.dyndns.fichtner.purgeannotationrefs.AnnotationReferenceRemover;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.GlobMatcher;
 import org.dyndns.fichtner.purgeannotationrefs.Matcher.RegExpMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.Matcher.StringMatcher;
+import org.dyndns.fichtner.purgeannotationrefs.RemovalPlan;
 import org.dyndns.fichtner.purgeannotationrefs.RemoveFrom;
+import org.dyndns.fichtner.purgeannotationrefs.optimizer.DirectoryOptimizer;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.util.*;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -33,6 +44,26 @@ public class PurgeAnnoRefsMojo extends AbstractMojo {
   @Parameter(property = PAR + ".removes", required = true)
   private Remove[] removes;
 
+  /**
+   * Only process classes that are new or changed since the last run.
+   */
+  @Parameter(property = PAR + ".incremental", defaultValue = "true")
+  private boolean incremental = true;
+
+  /**
+   * File to keep the state of the last run in (content hashes of the classes
+   * and a fingerprint of the configuration).
+   */
+  @Parameter(property = PAR + ".stateFile", defaultValue = "${project.build.directory}/" + PAR + "-state.txt")
+  private File stateFile;
+
+  /**
+   * Count of threads processing classes concurrently, defaults to the count
+   * of available processors.
+   */
+  @Parameter(property = PAR + ".threads")
+  private int threads;
+
   private static Iterable<RemoveFrom> configToTarget(Iterable<String> strings) {
     return
         StreamSupport.stream(strings.spliterator(), false)
@@ -42,63 +73,131 @@ public class PurgeAnnoRefsMojo extends AbstractMojo {
 
   }
 
-  private static List<File> collectFiles(File root) {
-    return collectTo(root, new ArrayList<>(200));
-  }
-
-  private static List<File> collectTo(File baseDir, List<File> files) {
-    for (File file : Objects.requireNonNullElseGet(baseDir.listFiles(), () -> new File[]{})) {
-      if (file.isFile() && file.getName().endsWith(".class")) {
-        files.add(file);
-      } else if (file.isDirectory()) {
-        collectTo(file, files);
+  public void execute() throws MojoFailureException {
+    AnnotationReferenceRemover remover = getConfigured();
+    File outputDirectory = new File(project.getBuild().getOutputDirectory());
+    if (!outputDirectory.isDirectory()) {
+      return;
+    }
+    try {
+      IncrementalState state = loadState();
+      List<DirectoryOptimizer.Result> results = new DirectoryOptimizer(remover) {
+        @Override
+        protected byte[] transformClass(Path path, byte[] bytes) throws IOException {
+          if (state == null) {
+            return super.transformClass(path, bytes);
+          }
+          String name = path.toString().replace(File.separatorChar, '/');
+          if (state.isUpToDate(name, bytes)) {
+            return bytes;
+          }
+          byte[] result = super.transformClass(path, bytes);
+          state.processed(name, result);
+          return result;
+        }
+      }.setThreads(threads > 0 ? threads : Runtime.getRuntime().availableProcessors())
+          .optimize(outputDirectory.toPath());
+      if (state != null) {
+        state.save(stateFile.toPath());
       }
+      long optimized = results.stream()
+          .filter(it -> it.getAction() == DirectoryOptimizer.Action.OPTIMIZED)
+          .count();
+      getLog().info("Optimized " + optimized + " of " + results.size() + " classes");
+    } catch (IOException e) {
+      throw new MojoFailureException(e.getMessage(), e);
     }
-    return files;
   }
 
-  public void execute() throws MojoFailureException {
-    AnnotationReferenceRemover remover = getConfigured();
-    for (File file : collectFiles(new File(project.getBuild().getOutputDirectory()))) {
-      enhanceClass(remover, file);
+  /**
+   * Returns the state of the last run, <code>null</code> if not processing
+   * incrementally.
+   */
+  private IncrementalState loadState() throws IOException {
+    if (!incremental || stateFile == null) {
+      return null;
+    }
+    String fingerprint = fingerprint();
+    if (fingerprint == null) {
+      getLog().info("Version of the remover unknown, processing all classes");
+      return null;
+    }
+    IncrementalState state = IncrementalState.load(stateFile.toPath(), fingerprint);
+    if (state.isFullRun()) {
+      getLog().info("No state of a previous run or configuration changed, processing all classes");
     }
+    return state;
   }
 
-  private void enhanceClass(AnnotationReferenceRemover remover, File file)
-      throws MojoFailureException {
+  /**
+   * Returns a hash of the configuration (and the version of the remover)
+   * classes have been processed with, <code>null</code> if the version of the
+   * remover is unknown.
+   */
+  private String fingerprint() throws IOException {
+    String version = version(AnnotationReferenceRemover.class);
+    if (version == null) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(version);
+    for (Remove remove : removes) {
+      sb.append('\n').append(remove.name).append('\t').append(remove.glob).append('\t').append(remove.regexp)
+          .append('\t').append(remove.removeFroms);
+    }
+    return IncrementalState.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
 
-    try (var outputStream = new ByteArrayOutputStream()) {
-      try (var inputStream = new FileInputStream(file)) {
-        remover.optimize(inputStream, outputStream);
-      }
-      replace(file, outputStream.toByteArray());
-    } catch (FileNotFoundException e) {
-      throw new MojoFailureException("Failed to load " + file);
-    } catch (IOException e) {
-      throw new MojoFailureException("IOException " + e.getMessage());
+  /**
+   * Returns the implementation version of the jar the passed class has been
+   * loaded from. Without one (e.g. classes not packaged or a jar without
+   * manifest entries) or for snapshots the content of the jar or the class
+   * directory is hashed instead, so a changed remover still invalidates the
+   * state. Returns <code>null</code> if the location of the class is unknown.
+   */
+  static String version(Class<?> type) throws IOException {
+    String version = type.getPackage().getImplementationVersion();
+    if (version != null && !version.endsWith("-SNAPSHOT")) {
+      return version;
+    }
+    CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+    if (codeSource == null || codeSource.getLocation() == null) {
+      return null;
+    }
+    try {
+      return IncrementalState.hash(Paths.get(codeSource.getLocation().toURI()));
+    } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+      return null;
     }
   }
 
-  private void replace(File file, byte[] content) throws IOException {
-    try (FileOutputStream stream = new FileOutputStream(file, false)) {
-      stream.write(content);
+  private static Predicate<String> matcher(Remove remove) throws MojoFailureException {
+    if (remove.name != null) {
+      return new StringMatcher(remove.name);
+    } else if (remove.glob != null) {
+      return new GlobMatcher(remove.glob);
+    } else if (remove.regexp != null) {
+      return new RegExpMatcher(Pattern.compile(remove.regexp));
     }
+    throw new MojoFailureException("missing argument for remove, either name, glob or regexp has to be set");
   }
 
-  private AnnotationReferenceRemover getConfigured() {
-    AnnotationReferenceRemover remover = new AnnotationReferenceRemover();
+  /**
+   * Returns a remover backed by an immutable {@link RemovalPlan}, so the
+   * threads processing classes concurrently can share it.
+   */
+  private AnnotationReferenceRemover getConfigured() throws MojoFailureException {
+    RemovalPlan.Builder builder = RemovalPlan.builder();
     for (Remove remove : removes) {
-      Predicate<String> matcher = new RegExpMatcher(
-          Pattern.compile(remove.regexp));
+      Predicate<String> matcher = matcher(remove);
       if (remove.removeFroms == null) {
-        remover.remove(matcher);
+        builder.remove(matcher);
       } else {
         for (RemoveFrom removeFrom : configToTarget(remove.removeFroms)) {
-          remover.removeFrom(removeFrom, matcher);
+          builder.removeFrom(removeFrom, matcher);
         }
       }
     }
-    return remover;
+    return new AnnotationReferenceRemover(builder.build());
   }
 
 }
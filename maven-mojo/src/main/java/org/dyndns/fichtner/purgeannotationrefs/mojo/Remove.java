@@ -6,7 +6,13 @@ import java.util.List;
 
 public class Remove {
 
-  @Parameter(property = PurgeAnnoRefsMojo.PAR + ".remove.regexp", required = true)
+  @Parameter(property = PurgeAnnoRefsMojo.PAR + ".remove.name")
+  public String name;
+
+  @Parameter(property = PurgeAnnoRefsMojo.PAR + ".remove.glob")
+  public String glob;
+
+  @Parameter(property = PurgeAnnoRefsMojo.PAR + ".remove.regexp")
   public String regexp;
 
   @Parameter(property = PurgeAnnoRefsMojo.PAR + ".remove.removeFroms")
@@ -0,0 +1,94 @@
+package org.dyndns.fichtner.purgeannotationrefs.mojo;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IncrementalStateTest {
+
+  private static final byte[] CLASS_A = "a".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] CLASS_B = "b".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void processedClassesAreUpToDateInTheNextRun() throws IOException {
+    Path file = stateFile();
+    try {
+      IncrementalState first = IncrementalState.load(file, "f1");
+      assertTrue(first.isFullRun());
+      assertFalse(first.isUpToDate("a/A.class", CLASS_A));
+      first.processed("a/A.class", CLASS_A);
+      first.processed("b/B.class", CLASS_B);
+      first.save(file);
+
+      IncrementalState second = IncrementalState.load(file, "f1");
+      assertFalse(second.isFullRun());
+      assertTrue(second.isUpToDate("a/A.class", CLASS_A));
+      // changed since
+      assertFalse(second.isUpToDate("b/B.class", CLASS_A));
+      second.save(file);
+
+      // only the classes up to date or processed are kept
+      IncrementalState third = IncrementalState.load(file, "f1");
+      assertTrue(third.isUpToDate("a/A.class", CLASS_A));
+      assertFalse(third.isUpToDate("b/B.class", CLASS_B));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void changedFingerprintProcessesAllClasses() throws IOException {
+    Path file = stateFile();
+    try {
+      IncrementalState state = IncrementalState.load(file, "f1");
+      state.processed("a/A.class", CLASS_A);
+      state.save(file);
+      IncrementalState changed = IncrementalState.load(file, "f2");
+      assertTrue(changed.isFullRun());
+      assertFalse(changed.isUpToDate("a/A.class", CLASS_A));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void directoryHashChangesWithContent() throws IOException {
+    Path directory = Files.createTempDirectory("classes");
+    Path file = Files.createDirectories(directory.resolve("a")).resolve("A.class");
+    try {
+      Files.write(file, CLASS_A);
+      String hash = IncrementalState.hash(directory);
+      assertEquals(hash, IncrementalState.hash(directory));
+      Files.write(file, CLASS_B);
+      assertNotEquals(hash, IncrementalState.hash(directory));
+    } finally {
+      Files.delete(file);
+      Files.delete(file.getParent());
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void versionOfUnpackagedClassesIsTheirHash() throws IOException {
+    // the classes of this test are not packaged into a jar
+    String version = PurgeAnnoRefsMojo.version(IncrementalStateTest.class);
+    assertNotNull(version);
+    assertEquals(version, PurgeAnnoRefsMojo.version(IncrementalStateTest.class));
+  }
+
+  private static Path stateFile() throws IOException {
+    Path file = Files.createTempFile("state", ".txt");
+    Files.delete(file);
+    return file;
+  }
+
+}
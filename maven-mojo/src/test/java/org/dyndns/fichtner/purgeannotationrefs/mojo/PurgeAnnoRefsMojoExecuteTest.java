@@ -0,0 +1,132 @@
+package org.dyndns.fichtner.purgeannotationrefs.mojo;
+
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.ReflectionUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Executes the mojo directly (without the plexus container) on a copy of the
+ * compiled test classes of this module, removing the JUnit annotations.
+ */
+public class PurgeAnnoRefsMojoExecuteTest {
+
+  private static final String TEST_ANNO = "org.junit.jupiter.api.Test";
+
+  @Test
+  public void concurrentResultIsSameAsSequentialResult() throws Exception {
+    Path sequential = copyTestClasses();
+    Path concurrent = copyTestClasses();
+    try {
+      Map<String, byte[]> original = read(sequential);
+      mojo(sequential, 1).execute();
+      mojo(concurrent, 4).execute();
+      Map<String, byte[]> expected = read(sequential);
+      Map<String, byte[]> actual = read(concurrent);
+      assertEquals(expected.keySet(), actual.keySet());
+      for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+        assertArrayEquals(entry.getValue(), actual.get(entry.getKey()), entry.getKey());
+      }
+      // the annotations of this class have been removed at all
+      String name = getClass().getName().replace('.', '/') + ".class";
+      assertFalse(Arrays.equals(original.get(name), expected.get(name)));
+    } finally {
+      delete(sequential);
+      delete(concurrent);
+    }
+  }
+
+  @Test
+  public void upToDateClassesAreSkipped() throws Exception {
+    Path classes = copyTestClasses();
+    Path stateFile = Files.createTempFile("state", ".txt");
+    try {
+      Map<String, byte[]> original = read(classes);
+      PurgeAnnoRefsMojo mojo = mojo(classes, 1);
+      ReflectionUtils.setVariableValueInObject(mojo, "incremental", true);
+      ReflectionUtils.setVariableValueInObject(mojo, "stateFile", stateFile.toFile());
+      mojo.execute();
+
+      // pretend this class has been written as it is originally by the last run
+      String skipped = getClass().getName().replace('.', '/') + ".class";
+      Files.write(classes.resolve(skipped), original.get(skipped));
+      List<String> lines = Files.readAllLines(stateFile).stream()
+          .map(it -> it.endsWith('\t' + skipped) ? IncrementalState.hash(original.get(skipped)) + '\t' + skipped : it)
+          .collect(Collectors.toList());
+      Files.write(stateFile, lines);
+      // while this one has been changed since
+      String changed = IncrementalStateTest.class.getName().replace('.', '/') + ".class";
+      Files.write(classes.resolve(changed), original.get(changed));
+
+      mojo.execute();
+      Map<String, byte[]> actual = read(classes);
+      assertArrayEquals(original.get(skipped), actual.get(skipped));
+      assertFalse(Arrays.equals(original.get(changed), actual.get(changed)));
+    } finally {
+      delete(classes);
+      Files.delete(stateFile);
+    }
+  }
+
+  private static PurgeAnnoRefsMojo mojo(Path classes, int threads) throws IllegalAccessException {
+    MavenProject project = new MavenProject();
+    project.getBuild().setOutputDirectory(classes.toString());
+    Remove remove = new Remove();
+    remove.name = TEST_ANNO;
+    PurgeAnnoRefsMojo mojo = new PurgeAnnoRefsMojo();
+    ReflectionUtils.setVariableValueInObject(mojo, "project", project);
+    ReflectionUtils.setVariableValueInObject(mojo, "removes", new Remove[]{remove});
+    ReflectionUtils.setVariableValueInObject(mojo, "incremental", false);
+    ReflectionUtils.setVariableValueInObject(mojo, "threads", threads);
+    return mojo;
+  }
+
+  private static Path copyTestClasses() throws IOException, URISyntaxException {
+    Path source = Paths.get(PurgeAnnoRefsMojoExecuteTest.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI());
+    Path target = Files.createTempDirectory("classes");
+    try (Stream<Path> paths = Files.walk(source)) {
+      for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        Path copy = target.resolve(source.relativize(path).toString());
+        Files.createDirectories(copy.getParent());
+        Files.copy(path, copy);
+      }
+    }
+    return target;
+  }
+
+  private static Map<String, byte[]> read(Path directory) throws IOException {
+    Map<String, byte[]> result = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        result.put(directory.relativize(path).toString().replace('\\', '/'), Files.readAllBytes(path));
+      }
+    }
+    return result;
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(path);
+      }
+    }
+  }
+
+}